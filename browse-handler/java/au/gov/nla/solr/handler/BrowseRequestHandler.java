@@ -10,8 +10,17 @@ import org.apache.lucene.index.*;
 import org.apache.lucene.store.*;
 import org.apache.solr.handler.*;
 import org.apache.solr.request.*;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.apache.solr.util.plugin.SolrCoreAware;
 import java.io.*;
 import java.util.*;
 import java.net.URL;
@@ -21,6 +30,8 @@ import au.gov.nla.util.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.document.*;
 import java.util.logging.Logger;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import au.gov.nla.util.Normaliser;
@@ -28,28 +39,274 @@ import au.gov.nla.util.BrowseEntry;
 
 class Log
 {
-    private static Logger log ()
+    // Everything logs under the handler's name.  Looking up the caller's
+    // class meant building a stack trace for every line we logged.
+    private static final Logger log =
+        Logger.getLogger (BrowseRequestHandler.class.getName ());
+
+
+    public static void info (String s) { log.info (s); }
+}
+
+
+
+/*
+ * A tree of timed spans for a single request.  Each thread has its own
+ * current span, and begin() adds a child to it.  Threads that aren't tracing
+ * have no current span, so begin() and end() do nothing for them beyond a
+ * ThreadLocal lookup.
+ */
+class Trace
+{
+    private static final ThreadLocal<Span> current = new ThreadLocal<Span> ();
+
+
+    static class Span
+    {
+        private String name;
+        private Span parent;
+        private long start = System.nanoTime ();
+        private long end = -1;
+        private List<Span> children = null;
+
+
+        Span (String name, Span parent)
+        {
+            this.name = name;
+            this.parent = parent;
+        }
+
+
+        // Spans from batch threads can share a parent
+        private synchronized void add (Span child)
+        {
+            if (children == null) {
+                children = new ArrayList<Span> ();
+            }
+
+            children.add (child);
+        }
+
+
+        public double millis ()
+        {
+            long finish = (end >= 0) ? end : System.nanoTime ();
+
+            return (finish - start) / 1000000.0;
+        }
+
+
+        public synchronized NamedList<Object> asNamedList ()
+        {
+            NamedList<Object> result = new SimpleOrderedMap<Object> ();
+
+            result.add ("name", name);
+            result.add ("millis", millis ());
+
+            if (children != null) {
+                List<NamedList<Object>> list = new ArrayList<NamedList<Object>> ();
+
+                for (Span child : children) {
+                    list.add (child.asNamedList ());
+                }
+
+                result.add ("children", list);
+            }
+
+            return result;
+        }
+
+
+        private synchronized void describe (StringBuilder out, String indent)
+        {
+            out.append (indent).append (name).append (": ")
+                .append (String.format ("%.3f", millis ())).append (" ms\n");
+
+            if (children != null) {
+                for (Span child : children) {
+                    child.describe (out, indent + "  ");
+                }
+            }
+        }
+
+
+        public String toString ()
+        {
+            StringBuilder out = new StringBuilder ();
+            describe (out, "");
+
+            return out.toString ();
+        }
+    }
+
+
+    // Start tracing on this thread
+    public static Span start (String name)
+    {
+        Span root = new Span (name, null);
+        current.set (root);
+
+        return root;
+    }
+
+
+    // Stop tracing on this thread
+    public static void finish (Span root)
+    {
+        if (root != null) {
+            root.end = System.nanoTime ();
+            current.remove ();
+        }
+    }
+
+
+    public static Span current ()
+    {
+        return current.get ();
+    }
+
+
+    /*
+     * Carry on a trace from another thread, with new spans going under
+     * 'span'.  Returns whatever this thread was doing before so that it can
+     * be restored afterwards.
+     */
+    public static Span resume (Span span)
+    {
+        Span previous = current.get ();
+
+        if (span == null) {
+            current.remove ();
+        } else {
+            current.set (span);
+        }
+
+        return previous;
+    }
+
+
+    public static Span begin (String name)
+    {
+        Span parent = current.get ();
+
+        if (parent == null) {
+            return null;
+        }
+
+        Span span = new Span (name, parent);
+        parent.add (span);
+        current.set (span);
+
+        return span;
+    }
+
+
+    // The same, but only building the name if we're tracing
+    public static Span begin (String name, String detail)
     {
-        // Caller's class
-        return Logger.getLogger
-            (new Throwable ().getStackTrace ()[2].getClassName ());
+        if (current.get () == null) {
+            return null;
+        }
+
+        return begin (name + " " + detail);
     }
 
 
-    public static void info (String s) { log ().info (s); }
+    public static void end (Span span)
+    {
+        if (span != null) {
+            span.end = System.nanoTime ();
+            current.set (span.parent);
+        }
+    }
 }
 
 
 
 class HeadingSlice
 {
-    public List<String> headings = new LinkedList<String> ();
+    public List<String> headings = new ArrayList<String> ();
     public int total;
+
+    // The sort key of each heading (only filled in by getKeyedHeadings)
+    public List<byte[]> keys;
+}
+
+
+
+/*
+ * Work that shouldn't hold up a request, like building and warming new
+ * versions of indexes.
+ */
+class Background
+{
+    private static ExecutorService executor =
+        Executors.newSingleThreadExecutor (new ThreadFactory () {
+                public Thread newThread (Runnable r)
+                {
+                    Thread t = new Thread (r, "Browse background work");
+                    t.setDaemon (true);
+                    return t;
+                }
+            });
+
+
+    public static void submit (Runnable task)
+    {
+        executor.submit (task);
+    }
+}
+
+
+
+interface HeadingsDB
+{
+    // Headings that come straight from the bib index need to know which
+    // searcher a query is using.  Others can just return themselves.
+    public HeadingsDB withSearcher (IndexSearcher searcher);
+
+    // The same headings in another of the DB's sort orders (or the DB itself
+    // for a null 'order').
+    public HeadingsDB withOrdering (String order) throws Exception;
+
+    public void reopenIfUpdated () throws Exception;
+
+    public void queryFinished ();
+
+    // Changes whenever the headings (or their rowids) change.
+    public long version ();
+
+    public int getHeadingStart (String from) throws Exception;
+
+    public HeadingSlice getHeadings (int rowid, int rows) throws Exception;
+
+    // Like getHeadings, but with the sort key of each heading too.  Keys
+    // compare with Utils.compareKeys.
+    public HeadingSlice getKeyedHeadings (int rowid, int rows) throws Exception;
+
+    // A copy of the headings as they are now, which can still be read once
+    // the current request is over (for work done in the background).  Only
+    // call this between reopenIfUpdated and queryFinished, and release the
+    // copy when it's no longer needed.
+    public HeadingsDB copy () throws Exception;
+
+    public void release ();
+}
+
+
+
+/*
+ * Runs some representative queries against a new version of a HeadingsDB
+ * before it starts taking traffic.
+ */
+interface HeadingsWarmer
+{
+    public void warm (HeadingsDB db) throws Exception;
 }
 
 
 
-class HeadingsDB
+class SQLiteHeadingsDB implements HeadingsDB
 {
     Connection db;
     String path;
@@ -57,12 +314,37 @@ class HeadingsDB
     int totalCount;
     Normaliser normaliser;
 
+    // Set if the DB stores its sort keys in front-coded blocks (see
+    // CreateBrowseSQLite).  Holds the first key and first rowid of each block.
+    byte[][] blockKeys;
+    int[] blockRows;
+
+    // The DB's extra sort orders (see CreateBrowseSQLite), and how to make
+    // keys for each
+    Map<String, Normaliser> orderings = new HashMap<String, Normaliser> ();
+
+    HeadingsWarmer warmer;
+    boolean warming = false;
+    boolean warmed = false;
+
+    // Set if warming the new version failed, in which case it's installed
+    // cold rather than warmed again
+    boolean warmFailed = false;
+
     ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock ();
 
-    public HeadingsDB (String path) throws Exception
+    public SQLiteHeadingsDB (String path) throws Exception
+    {
+        this (path, Normaliser.getInstance ());
+    }
+
+
+    // 'normaliser' must be the one the DB's sort keys were built with.
+    public SQLiteHeadingsDB (String path, Normaliser normaliser)
+        throws Exception
     {
         this.path = path;
-        normaliser = Normaliser.getInstance ();
+        this.normaliser = normaliser;
     }
 
 
@@ -89,6 +371,84 @@ class HeadingsDB
 
         rs.close ();
         countStmnt.close ();
+
+        loadKeyBlocks ();
+        loadOrderings ();
+    }
+
+
+    private void loadOrderings () throws Exception
+    {
+        Map<String, Normaliser> result = new HashMap<String, Normaliser> ();
+
+        PreparedStatement tableStmnt = db.prepareStatement (
+            "select count(1) as count from sqlite_master " +
+            "where type = 'table' and name = 'orderings'");
+
+        ResultSet rs = tableStmnt.executeQuery ();
+        rs.next ();
+        boolean hasOrderings = (rs.getInt ("count") > 0);
+        rs.close ();
+        tableStmnt.close ();
+
+        if (hasOrderings) {
+            PreparedStatement orderingStmnt = db.prepareStatement (
+                "select name, locale, strength from orderings");
+
+            rs = orderingStmnt.executeQuery ();
+            while (rs.next ()) {
+                result.put (rs.getString ("name"),
+                            new Normaliser (rs.getString ("locale"),
+                                            Normaliser.strength (rs.getString ("strength"))));
+            }
+            rs.close ();
+            orderingStmnt.close ();
+        }
+
+        orderings = result;
+    }
+
+
+    private void loadKeyBlocks () throws Exception
+    {
+        blockKeys = null;
+        blockRows = null;
+
+        PreparedStatement tableStmnt = db.prepareStatement (
+            "select count(1) as count from sqlite_master " +
+            "where type = 'table' and name = 'key_blocks'");
+
+        ResultSet rs = tableStmnt.executeQuery ();
+        rs.next ();
+        boolean hasBlocks = (rs.getInt ("count") > 0);
+        rs.close ();
+        tableStmnt.close ();
+
+        if (!hasBlocks) {
+            return;
+        }
+
+        List<byte[]> keys = new ArrayList<byte[]> ();
+        List<Integer> rows = new ArrayList<Integer> ();
+
+        PreparedStatement blockStmnt = db.prepareStatement (
+            "select first_row, first_key from key_blocks order by rowid");
+
+        rs = blockStmnt.executeQuery ();
+        while (rs.next ()) {
+            rows.add (rs.getInt ("first_row"));
+            keys.add (rs.getBytes ("first_key"));
+        }
+        rs.close ();
+        blockStmnt.close ();
+
+        blockKeys = keys.toArray (new byte[keys.size ()][]);
+        blockRows = new int[rows.size ()];
+        for (int i = 0; i < blockRows.length; i++) {
+            blockRows[i] = rows.get (i);
+        }
+
+        Log.info ("Loaded " + blockRows.length + " key blocks");
     }
 
 
@@ -98,6 +458,107 @@ class HeadingsDB
     }
 
 
+    public HeadingsDB withSearcher (IndexSearcher searcher)
+    {
+        return this;
+    }
+
+
+    public HeadingsDB withOrdering (String order)
+    {
+        return (order == null) ? this : new Ordering (order);
+    }
+
+
+    public void setWarmer (HeadingsWarmer warmer)
+    {
+        this.warmer = warmer;
+    }
+
+
+    public long version ()
+    {
+        return dbVersion;
+    }
+
+
+    private void close () throws Exception
+    {
+        if (db != null) {
+            db.close ();
+        }
+    }
+
+
+    // The copy has its own connection to the current file, so it carries on
+    // reading this version even once a newer one is installed.
+    public HeadingsDB copy () throws Exception
+    {
+        SQLiteHeadingsDB copy = new SQLiteHeadingsDB (path, normaliser);
+        copy.openDB ();
+
+        return copy;
+    }
+
+
+    public void release ()
+    {
+        try {
+            close ();
+        } catch (Exception e) {
+            Log.info ("Failed to close copy of " + path + ": " + e);
+        }
+    }
+
+
+    /*
+     * Open the new version of the DB on the side and run the warmer against
+     * it, so its pages are in the OS cache by the time we swap it in.  The
+     * current version carries on serving queries in the meantime.
+     */
+    private void warmInBackground (final File updated)
+    {
+        if (warming) {
+            return;
+        }
+
+        warming = true;
+
+        Background.submit (new Runnable () {
+                public void run ()
+                {
+                    try {
+                        Log.info ("Warming new index version: " + updated);
+                        SQLiteHeadingsDB newVersion =
+                            new SQLiteHeadingsDB (updated.getPath (), normaliser);
+
+                        try {
+                            newVersion.openDB ();
+                            warmer.warm (newVersion);
+                        } finally {
+                            newVersion.close ();
+                        }
+
+                        synchronized (SQLiteHeadingsDB.this) {
+                            warmed = true;
+                        }
+                    } catch (Exception e) {
+                        Log.info ("Failed to warm " + updated + " (it will be " +
+                                  "installed without warming): " + e);
+
+                        synchronized (SQLiteHeadingsDB.this) {
+                            warmFailed = true;
+                        }
+                    } finally {
+                        synchronized (SQLiteHeadingsDB.this) {
+                            warming = false;
+                        }
+                    }
+                }
+            });
+    }
+
+
     synchronized public void reopenIfUpdated () throws Exception
     {
         dbLock.readLock ().lock ();
@@ -105,6 +566,11 @@ class HeadingsDB
         File flag = new File (path + "-ready");
         File updated = new File (path + "-updated");
         if (db == null || (flag.exists () && updated.exists ())) {
+            if (db != null && warmer != null && !warmed && !warmFailed) {
+                warmInBackground (updated);
+                return;
+            }
+
             Log.info ("Index update event detected!");
             try {
                 dbLock.readLock ().unlock ();
@@ -123,6 +589,8 @@ class HeadingsDB
 
                     Log.info ("Reopening HeadingsDB");
                     openDB ();
+                    warmed = false;
+                    warmFailed = false;
                 } else if (db == null) {
                     openDB ();
                 }
@@ -139,8 +607,52 @@ class HeadingsDB
     }
 
 
+    private int getHeadingStartFromBlocks (byte[] key) throws Exception
+    {
+        // Find the last block whose first key sorts before ours.  Our heading
+        // starts somewhere in that block (or right after it).  Blocks whose
+        // first key equals ours don't count, since an equal key might also
+        // end the previous block.
+        int lo = 0;
+        int hi = blockKeys.length - 1;
+        int block = -1;
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (Utils.compareKeys (blockKeys[mid], key) < 0) {
+                block = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        if (block < 0) {
+            return 1;
+        }
+
+        PreparedStatement blockStmnt = db.prepareStatement (
+            "select keys from key_blocks where rowid = ?");
+
+        blockStmnt.setInt (1, block + 1);
+
+        ResultSet rs = blockStmnt.executeQuery ();
+        rs.next ();
+        int position = KeyBlock.search (rs.getBytes ("keys"), key);
+        rs.close ();
+        blockStmnt.close ();
+
+        return blockRows[block] + position;
+    }
+
+
     public int getHeadingStart (String from) throws Exception
     {
+        if (blockKeys != null) {
+            return getHeadingStartFromBlocks (normaliser.normalise (from));
+        }
+
         PreparedStatement rowStmnt = db.prepareStatement (
             "select rowid from headings " +
             "where key >= ? " +
@@ -159,12 +671,69 @@ class HeadingsDB
     }
 
 
+    // The sort keys of 'count' headings starting from 'rowid', read from the
+    // front-coded key blocks.
+    private List<byte[]> keysFromBlocks (int rowid, int count) throws Exception
+    {
+        List<byte[]> keys = new ArrayList<byte[]> (count);
+        int start = Math.max (rowid, 1);
+        int block = Arrays.binarySearch (blockRows, start);
+
+        if (block < 0) {
+            block = Math.max (-(block + 1) - 1, 0);
+        }
+
+        PreparedStatement blockStmnt = db.prepareStatement (
+            "select first_row, keys from key_blocks " +
+            "where rowid >= ? " +
+            "order by rowid");
+
+        blockStmnt.setInt (1, block + 1);
+
+        ResultSet rs = blockStmnt.executeQuery ();
+
+        while (keys.size () < count && rs.next ()) {
+            int firstRow = rs.getInt ("first_row");
+            List<byte[]> blockKeys = KeyBlock.decode (rs.getBytes ("keys"));
+
+            for (int i = Math.max (0, start - firstRow);
+                 i < blockKeys.size () && keys.size () < count;
+                 i++) {
+                keys.add (blockKeys.get (i));
+            }
+        }
+
+        rs.close ();
+        blockStmnt.close ();
+
+        return keys;
+    }
+
+
     public HeadingSlice getHeadings (int rowid,
                                      int rows)
         throws Exception
+    {
+        return getHeadings (rowid, rows, false);
+    }
+
+
+    public HeadingSlice getKeyedHeadings (int rowid, int rows)
+        throws Exception
+    {
+        return getHeadings (rowid, rows, true);
+    }
+
+
+    private HeadingSlice getHeadings (int rowid, int rows, boolean withKeys)
+        throws Exception
     {
         HeadingSlice result = new HeadingSlice ();
 
+        if (withKeys) {
+            result.keys = new ArrayList<byte[]> ();
+        }
+
         PreparedStatement rowStmnt = db.prepareStatement (
             String.format ("select * from headings " +
                            "where rowid >= ? " +
@@ -193,588 +762,5571 @@ class HeadingsDB
 
         while (rs.next ()) {
             result.headings.add (rs.getString ("heading"));
+
+            if (withKeys && blockKeys == null) {
+                result.keys.add (rs.getBytes ("key"));
+            }
         }
 
         rs.close ();
         rowStmnt.close ();
 
+        if (withKeys && blockKeys != null) {
+            result.keys = keysFromBlocks (rowid, result.headings.size ());
+        }
+
         result.total = (totalCount - rowid) + 1;
 
         return result;
     }
-}
 
 
+    /*
+     * The headings from 'from' up to (but not including) 'to' in the given
+     * ordering (or the DB's own order for a null 'order').  Either end can be
+     * null to run from the start or to the end of the DB.
+     *
+     * The cursor reads over a connection of its own, opened while we hold the
+     * read lock, so it keeps seeing the version of the DB it started on even
+     * if a new one is swapped in underneath it.
+     */
+    public HeadingCursor export (String order, String from, String to)
+        throws Exception
+    {
+        reopenIfUpdated ();
 
-class LuceneDB
-{
-    static Map<String,LuceneDB> dbs = new HashMap<String,LuceneDB> ();
-
-    IndexSearcher searcher;
-    String dbpath;
-    long currentVersion = -1;
-
-
-    public synchronized static LuceneDB getOrCreate (String path)
-        throws Exception
-    {
-        if (!dbs.containsKey (path)) {
-            LuceneDB db = new LuceneDB (path);
-            dbs.put (path, db);
-        }
-
-        return dbs.get (path);
-    }
+        try {
+            if (order != null) {
+                return new Ordering (order).export (from, to);
+            }
 
+            int start = (from != null) ? getHeadingStart (from) : 1;
+            int end = (to != null) ? getHeadingStart (to) : totalCount + 1;
 
-    public synchronized static void reopenAllIfUpdated ()
-        throws Exception
-    {
-        for (LuceneDB db : dbs.values ()) {
-            db.reopenIfUpdated ();
+            return new HeadingCursor (path,
+                                      "select heading from headings " +
+                                      "where rowid >= ? and rowid < ? " +
+                                      "order by rowid",
+                                      start, end);
+        } finally {
+            queryFinished ();
         }
     }
 
-
-    public LuceneDB (String path) throws Exception
+    /*
+     * One of the DB's extra sort orders.  Its rowids are positions in that
+     * order, and each points to the heading's row in the shared headings
+     * table.
+     */
+    private class Ordering implements HeadingsDB
     {
-        this.dbpath = path;
-    }
+        private String name;
 
 
-    private void openSearcher () throws Exception
-    {
-        if (searcher != null) {
-            searcher.close ();
+        Ordering (String name)
+        {
+            this.name = name;
         }
 
-        IndexReader dbReader = IndexReader.open(FSDirectory.open (new File (dbpath)));
-        searcher = new IndexSearcher (dbReader);
-        currentVersion = indexVersion ();
-    }
 
+        // Checked when the ordering is used, since the DB might not be open
+        // when it's asked for
+        private Normaliser normaliser () throws Exception
+        {
+            Normaliser normaliser = orderings.get (name);
 
-    public TopDocs search (Query q, int n) throws Exception
-    {
-        return searcher.search (q, n);
-    }
+            if (normaliser == null) {
+                throw new Exception ("Invalid value for parameter: order " +
+                                     "(no ordering called " + name + ")");
+            }
 
+            return normaliser;
+        }
 
-    private long indexVersion ()
-    {
-        return new File (dbpath + "/segments.gen").lastModified ();
-    }
 
+        private String table ()
+        {
+            return "ordering_" + name;
+        }
 
-    private boolean isDBUpdated ()
-    {
-        return (currentVersion != indexVersion ());
-    }
 
+        public HeadingsDB withSearcher (IndexSearcher searcher)
+        {
+            return this;
+        }
 
-    public Document getDocument (int docid) throws Exception
-    {
-        return searcher.getIndexReader ().document (docid);
-    }
 
+        public HeadingsDB withOrdering (String order)
+        {
+            return SQLiteHeadingsDB.this.withOrdering (order);
+        }
 
-    public synchronized void reopenIfUpdated () throws Exception
-    {
-        if (isDBUpdated ()) {
-            openSearcher ();
-            Log.info ("Reopened " + searcher + " (" + dbpath + ")");
+
+        public void reopenIfUpdated () throws Exception
+        {
+            SQLiteHeadingsDB.this.reopenIfUpdated ();
         }
-    }
-}
 
 
+        public void queryFinished ()
+        {
+            SQLiteHeadingsDB.this.queryFinished ();
+        }
 
-class AuthDB
-{
-    static int MAX_PREFERRED_HEADINGS = 1000;
 
-    private LuceneDB db;
-    private String preferredHeadingField;
-    private String useInsteadHeadingField;
-    private String seeAlsoHeadingField;
-    private String scopeNoteField;
+        public long version ()
+        {
+            return SQLiteHeadingsDB.this.version ();
+        }
 
-    public AuthDB (String path,
-                   String preferredField,
-                   String useInsteadField,
-                   String seeAlsoField,
-                   String noteField)
-        throws Exception
-    {
-        db = LuceneDB.getOrCreate (path);
-        preferredHeadingField = preferredField;
-        useInsteadHeadingField = useInsteadField;
-        seeAlsoHeadingField = seeAlsoField;
-        scopeNoteField = noteField;
-    }
 
+        public HeadingsDB copy () throws Exception
+        {
+            throw new Exception ("Orderings can't be copied");
+        }
 
-    private List<String> docValues (Document doc, String field)
-    {
-        String values[] = doc.getValues (field);
 
-        if (values == null) {
-            values = new String[] {};
+        public void release ()
+        {
         }
 
-        return Arrays.asList (values);
-    }
 
+        public int getHeadingStart (String from) throws Exception
+        {
+            byte[] key = normaliser ().normalise (from);
 
-    public void reopenIfUpdated () throws Exception
-    {
-        db.reopenIfUpdated ();
-    }
+            PreparedStatement rowStmnt = db.prepareStatement (
+                "select rowid from " + table () + " " +
+                "where key >= ? " +
+                "order by key " +
+                "limit 1");
 
+            rowStmnt.setBytes (1, key);
 
-    public Document getAuthorityRecord (String heading)
-        throws Exception
-    {
-        TopDocs results = (db.search (new TermQuery (new Term (preferredHeadingField,
-                                                               heading)),
-                                      1));
+            ResultSet rs = rowStmnt.executeQuery ();
 
-        if (results.totalHits > 0) {
-            return db.getDocument (results.scoreDocs[0].doc);
-        } else {
-            return null;
+            try {
+                return rs.next () ? rs.getInt ("rowid") : totalCount + 1;
+            } finally {
+                rs.close ();
+                rowStmnt.close ();
+            }
         }
-    }
 
 
-    public List<Document> getPreferredHeadings (String heading)
-        throws Exception
-    {
-        TopDocs results = (db.search (new TermQuery (new Term (useInsteadHeadingField,
-                                                               heading)),
-                                      MAX_PREFERRED_HEADINGS));
+        public HeadingSlice getHeadings (int rowid, int rows)
+            throws Exception
+        {
+            return getHeadings (rowid, rows, false);
+        }
 
-        List<Document> result = new Vector<Document> ();
 
-        for (int i = 0; i < results.totalHits; i++) {
-            result.add (db.getDocument (results.scoreDocs[i].doc));
+        public HeadingSlice getKeyedHeadings (int rowid, int rows)
+            throws Exception
+        {
+            return getHeadings (rowid, rows, true);
         }
 
-        return result;
-    }
 
+        private HeadingSlice getHeadings (int rowid, int rows, boolean withKeys)
+            throws Exception
+        {
+            normaliser ();
 
-    public Map<String, List<String>> getFields (String heading)
-        throws Exception
-    {
-        Document authInfo = getAuthorityRecord (heading);
+            HeadingSlice result = new HeadingSlice ();
 
-        Map<String, List<String>> itemValues =
-            new HashMap<String,List<String>> ();
+            if (withKeys) {
+                result.keys = new ArrayList<byte[]> ();
+            }
 
-        itemValues.put ("seeAlso", new ArrayList<String>());
-        itemValues.put ("useInstead", new ArrayList<String>());
-        itemValues.put ("note", new ArrayList<String>());
+            PreparedStatement rowStmnt = db.prepareStatement (
+                String.format ("select o.key, h.heading " +
+                               "from %s o join headings h on h.rowid = o.heading_id " +
+                               "where o.rowid >= ? " +
+                               "order by o.rowid " +
+                               "limit %d ",
+                               table (),
+                               rows));
 
-        if (authInfo != null) {
-            for (String value : docValues (authInfo, seeAlsoHeadingField)) {
-                itemValues.get ("seeAlso").add (value);
-            }
+            rowStmnt.setInt (1, rowid);
 
-            for (String value : docValues (authInfo, scopeNoteField)) {
-                itemValues.get ("note").add (value);
-            }
-        } else {
-            List<Document> preferredHeadings =
-                getPreferredHeadings (heading);
+            ResultSet rs = rowStmnt.executeQuery ();
+
+            while (rs.next ()) {
+                result.headings.add (rs.getString ("heading"));
 
-            for (Document doc : preferredHeadings) {
-                for (String value : docValues (doc, preferredHeadingField)) {
-                    itemValues.get ("useInstead").add (value);
+                if (withKeys) {
+                    result.keys.add (rs.getBytes ("key"));
                 }
             }
+
+            rs.close ();
+            rowStmnt.close ();
+
+            result.total = (totalCount - rowid) + 1;
+
+            return result;
         }
 
-        return itemValues;
+
+        HeadingCursor export (String from, String to) throws Exception
+        {
+            normaliser ();
+
+            int start = (from != null) ? getHeadingStart (from) : 1;
+            int end = (to != null) ? getHeadingStart (to) : totalCount + 1;
+
+            return new HeadingCursor (path,
+                                      "select h.heading " +
+                                      "from " + table () + " o " +
+                                      "join headings h on h.rowid = o.heading_id " +
+                                      "where o.rowid >= ? and o.rowid < ? " +
+                                      "order by o.rowid",
+                                      start, end);
+        }
     }
 }
 
 
 
-class BibDB
+/*
+ * Walks a run of headings in a headings DB, one row at a time, so an export
+ * uses the same memory however many headings it covers.  Closes itself once
+ * it runs out.
+ */
+class HeadingCursor
 {
-    private IndexSearcher db;
-    private String field;
+    private Connection db;
+    private PreparedStatement stmnt;
+    private ResultSet rs;
+    private String heading;
 
-    public BibDB (IndexSearcher searcher, String field) throws Exception
+
+    // 'sql' selects a 'heading' column for the rowids from its first
+    // parameter up to (but not including) its second.
+    public HeadingCursor (String path, String sql, int start, int end)
+        throws Exception
     {
-        db = searcher;
-        this.field = field;
+        db = DriverManager.getConnection ("jdbc:sqlite:" + path);
+
+        try {
+            stmnt = db.prepareStatement (sql);
+            stmnt.setInt (1, start);
+            stmnt.setInt (2, end);
+
+            rs = stmnt.executeQuery ();
+        } catch (Exception e) {
+            close ();
+            throw e;
+        }
     }
 
 
-    public int recordCount (String heading)
-        throws Exception
+    public boolean next () throws Exception
     {
-        TermQuery q = new TermQuery (new Term (field, heading));
+        if (rs == null) {
+            return false;
+        }
 
-        Log.info ("Searching '" + field + "' for '" + "'" + heading + "'");
+        try {
+            if (rs.next ()) {
+                heading = rs.getString ("heading");
+                return true;
+            }
+        } catch (Exception e) {
+            close ();
+            throw e;
+        }
 
-        TotalHitCountCollector counter = new TotalHitCountCollector();
-        db.search (q, counter);
+        close ();
+        return false;
+    }
 
-        Log.info ("Hits: " + counter.getTotalHits ());
 
-        return counter.getTotalHits ();
+    public String heading ()
+    {
+        return heading;
     }
 
 
-    public List<String> matchingIDs (String heading)
-        throws Exception
+    public void close ()
     {
-        TermQuery q = new TermQuery (new Term (field, heading));
+        try {
+            if (rs != null) {
+                rs.close ();
+            }
 
-        Log.info (System.currentTimeMillis () + " Searching '" + field + "' for '" + heading + "'");
+            if (stmnt != null) {
+                stmnt.close ();
+            }
 
-        final List<String> ids = new ArrayList<String> ();
+            if (db != null) {
+                db.close ();
+            }
+        } catch (SQLException e) {
+            Log.info ("Failed to close export cursor: " + e);
+        }
 
-        db.search (q, new Collector () {
-                private int docBase;
+        rs = null;
+        stmnt = null;
+        db = null;
+    }
+}
 
-                public void setScorer (Scorer scorer) {
-                }
 
-                public boolean acceptsDocsOutOfOrder () {
-                    return true;
-                }
 
-                public void collect (int docnum) {
-                    int docid = docnum + docBase;
-                    try {
-                        Document doc = db.getIndexReader ().document (docid);
+/*
+ * Headings read directly from the terms of a field in the bib index, for
+ * sources whose browse order can simply be the index's term order.
+ *
+ * Rowids are positions in the list of terms that still have at least one
+ * live document.  To find a given position without walking the whole term
+ * dictionary we keep a sample of every SAMPLE_INTERVAL'th term, which is
+ * rebuilt in the background whenever a new searcher comes along.  Until the
+ * rebuild finishes, the old sample is used against the new terms, so
+ * positions may be slightly out but the headings themselves are current.
+ * Before the first sample is built, every request walks from the first term,
+ * and the number of documents stands in for the number of headings.
+ */
+class TermsHeadingsDB implements HeadingsDB
+{
+    static int SAMPLE_INTERVAL = 128;
 
-                        String[] vals = doc.getValues ("id");
-                        ids.add (vals[0]);
-                    } catch (org.apache.lucene.index.CorruptIndexException e) {
-                        Log.info ("CORRUPT INDEX EXCEPTION.  EEK! - " + e);
-                    } catch (Exception e) {
-                        Log.info ("Exception thrown: " + e);
-                    }
+    static class TermSample
+    {
+        long version;
+        String[] terms;
+        int totalCount;
 
-                }
+        // How many headings apart the sampled terms are
+        int interval;
+    }
 
-                public void setNextReader (IndexReader reader, int docBase) {
-                    this.docBase = docBase;
-                }
-            });
 
-        return ids;
+    // Shared between a TermsHeadingsDB and its per-searcher copies
+    static class SharedState
+    {
+        volatile TermSample sample;
+        boolean rebuilding = false;
     }
-}
 
 
+    private String field;
+    private SharedState state;
+    private IndexReader reader;
 
-class BrowseList
-{
-    public int totalCount;
-    public List<BrowseItem> items = new LinkedList<BrowseItem> ();
+    // Set for copies, which hold a reference to their reader
+    private boolean copied = false;
 
 
-    public List<Map<String, Object>> asMap ()
+    public TermsHeadingsDB (String field)
     {
-        List<Map<String, Object>> result = new LinkedList<Map<String, Object>> ();
+        this (field, new SharedState (), null);
+    }
 
-        for (BrowseItem item : items) {
-            result.add (item.asMap ());
-        }
 
-        return result;
+    private TermsHeadingsDB (String field, SharedState state, IndexReader reader)
+    {
+        this.field = field;
+        this.state = state;
+        this.reader = reader;
     }
-}
 
 
+    public HeadingsDB withSearcher (IndexSearcher searcher)
+    {
+        return new TermsHeadingsDB (field, state, searcher.getIndexReader ());
+    }
+
 
-class BrowseItem
-{
-    public List<String> seeAlso = new LinkedList<String> ();
-    public List<String> useInstead = new LinkedList<String> ();
-    public String note = "";
-    public String heading;
-    public List<String> ids;
-    int count;
+    public HeadingsDB withOrdering (String order) throws Exception
+    {
+        if (order != null) {
+            throw new Exception ("Terms sources can only be browsed in term order");
+        }
 
+        return this;
+    }
 
-    public BrowseItem (String heading)
+
+    // Whether the term 'termEnum' is on has any live documents.  Seeking on
+    // the enum saves looking the term up in the dictionary again.
+    private boolean hasLiveDocs (TermDocs termDocs, TermEnum termEnum)
+        throws IOException
     {
-        this.heading = heading;
+        termDocs.seek (termEnum);
+        return termDocs.next ();
     }
 
 
-    public Map<String, Object> asMap ()
+    // Stands in until the first real sample is built: a single "sampled"
+    // term before all the others.  Its version is one no reader has, so
+    // nothing cached against it outlives it.
+    private TermSample interimSample (IndexReader reader)
     {
-        Map<String, Object> result = new HashMap<String, Object> ();
+        TermSample result = new TermSample ();
 
-        result.put ("heading", heading);
-        result.put ("seeAlso", seeAlso);
-        result.put ("useInstead", useInstead);
-        result.put ("note", note);
-        result.put ("count", new Integer (count));
-        result.put ("ids", ids);
+        result.version = ~reader.getVersion ();
+        result.terms = new String[] {""};
+        result.totalCount = reader.numDocs ();
+        result.interval = Integer.MAX_VALUE;
 
         return result;
     }
-}
 
 
+    private TermSample buildSample (IndexReader reader) throws Exception
+    {
+        TermSample result = new TermSample ();
+        List<String> terms = new ArrayList<String> ();
+        int count = 0;
 
+        result.version = reader.getVersion ();
 
-class Browse
-{
-    private HeadingsDB headingsDB;
-    private AuthDB authDB;
-    private BibDB bibDB;
+        TermEnum termEnum = reader.terms (new Term (field, ""));
+        TermDocs termDocs = reader.termDocs ();
 
+        try {
+            do {
+                Term term = termEnum.term ();
 
-    public Browse (HeadingsDB headings, AuthDB auth)
-    {
-        headingsDB = headings;
-        authDB = auth;
+                if (term == null || !term.field ().equals (field)) {
+                    break;
+                }
+
+                if (hasLiveDocs (termDocs, termEnum)) {
+                    if ((count % SAMPLE_INTERVAL) == 0) {
+                        terms.add (term.text ());
+                    }
+
+                    count++;
+                }
+            } while (termEnum.next ());
+        } finally {
+            termDocs.close ();
+            termEnum.close ();
+        }
+
+        result.terms = terms.toArray (new String[terms.size ()]);
+        result.totalCount = count;
+        result.interval = SAMPLE_INTERVAL;
+
+        return result;
     }
 
 
-    public void setBibDB (BibDB b)
+    private void rebuildInBackground (final IndexReader newReader)
     {
-        this.bibDB = b;
+        // Hold the reader open until we're done with it, even if its searcher
+        // is closed in the meantime.
+        newReader.incRef ();
+        state.rebuilding = true;
+
+        Background.submit (new Runnable () {
+                public void run ()
+                {
+                    try {
+                        state.sample = buildSample (newReader);
+                        Log.info ("Rebuilt term sample for " + field + ": " +
+                                  state.sample.totalCount + " headings");
+                    } catch (Exception e) {
+                        Log.info ("Failed to rebuild term sample for " +
+                                  field + ": " + e);
+                    } finally {
+                        synchronized (state) {
+                            state.rebuilding = false;
+                        }
+
+                        try {
+                            newReader.decRef ();
+                        } catch (IOException e) {
+                            Log.info ("Failed to release reader: " + e);
+                        }
+                    }
+                }
+            });
     }
 
 
-    public synchronized void reopenDatabasesIfUpdated () throws Exception
+    public void reopenIfUpdated () throws Exception
     {
-        headingsDB.reopenIfUpdated ();
-        authDB.reopenIfUpdated ();
+        synchronized (state) {
+            if (state.sample == null) {
+                state.sample = interimSample (reader);
+            }
+
+            if (state.sample.version != reader.getVersion () &&
+                !state.rebuilding) {
+                rebuildInBackground (reader);
+            }
+        }
     }
 
 
     public void queryFinished ()
     {
-        headingsDB.queryFinished ();
     }
 
 
-    private void populateItem (BrowseItem item) throws Exception
+    public long version ()
     {
-        List<String> ids = bibDB.matchingIDs (item.heading);
-        item.ids = ids;
-        item.count = ids.size ();
+        // The headings themselves are covered by the searcher's version, but
+        // rowids move when the sample is rebuilt.
+        return state.sample.version;
+    }
 
-        Map<String, List<String>> fields = authDB.getFields (item.heading);
 
-        for (String value : fields.get ("seeAlso")) {
-            if (bibDB.recordCount (value) > 0) {
-                item.seeAlso.add (value);
-            }
-        }
+    public HeadingsDB copy () throws Exception
+    {
+        TermsHeadingsDB copy = new TermsHeadingsDB (field, state, reader);
 
-        for (String value : fields.get ("useInstead")) {
-            if (bibDB.recordCount (value) > 0) {
-                item.useInstead.add (value);
-            }
-        }
+        reader.incRef ();
+        copy.copied = true;
 
-        for (String value : fields.get ("note")) {
-            item.note = value;
-        }
+        return copy;
     }
 
 
-    public int getId (String from) throws Exception
+    public void release ()
     {
-        return headingsDB.getHeadingStart (from);
+        if (copied) {
+            try {
+                reader.decRef ();
+            } catch (IOException e) {
+                Log.info ("Failed to release reader: " + e);
+            }
+        }
     }
 
 
-    public BrowseList getList (int rowid, int offset, int rows)
-        throws Exception
+    // The position of the last sampled term that sorts at or before 'term'.
+    private int sampleBefore (TermSample s, String term)
     {
-        BrowseList result = new BrowseList ();
+        int idx = Arrays.binarySearch (s.terms, term);
 
-        HeadingSlice h = headingsDB.getHeadings (Math.max (0, rowid + offset),
-                                                 rows);
+        if (idx < 0) {
+            idx = -(idx + 1) - 1;
+        }
 
-        result.totalCount = h.total;
+        return Math.max (0, idx);
+    }
 
-        for (String heading : h.headings) {
-            BrowseItem item = new BrowseItem (heading);
 
-            populateItem (item);
+    public int getHeadingStart (String from) throws Exception
+    {
+        TermSample s = state.sample;
 
-            result.items.add (item);
+        if (s.terms.length == 0) {
+            return 1;
         }
 
-        return result;
-    }
-}
+        int idx = sampleBefore (s, from);
+        int position = idx * s.interval;
 
+        TermEnum termEnum = reader.terms (new Term (field, s.terms[idx]));
+        TermDocs termDocs = reader.termDocs ();
 
+        try {
+            do {
+                Term term = termEnum.term ();
 
-class BrowseSource
-{
-    public String DBpath;
-    public String field;
-    public String dropChars;
+                if (term == null || !term.field ().equals (field)) {
+                    break;
+                }
+
+                if (hasLiveDocs (termDocs, termEnum)) {
+                    if (term.text ().compareTo (from) >= 0) {
+                        return position + 1;
+                    }
+
+                    position++;
+                }
+            } while (termEnum.next ());
+        } finally {
+            termDocs.close ();
+            termEnum.close ();
+        }
 
-    public Browse browse;
+        return position + 1;   // past the end
+    }
 
 
-    public BrowseSource (String DBpath,
-                         String field,
-                         String dropChars)
+    public HeadingSlice getHeadings (int rowid, int rows) throws Exception
     {
-        this.DBpath = DBpath;
-        this.field = field;
-        this.dropChars = dropChars;
+        TermSample s = state.sample;
+        HeadingSlice result = new HeadingSlice ();
+
+        result.total = (s.totalCount - rowid) + 1;
+
+        int position = Math.max (rowid, 1) - 1;
+        int idx = position / s.interval;
+
+        if (idx >= s.terms.length) {
+            return result;
+        }
+
+        int skip = position - (idx * s.interval);
+
+        TermEnum termEnum = reader.terms (new Term (field, s.terms[idx]));
+        TermDocs termDocs = reader.termDocs ();
+
+        try {
+            do {
+                Term term = termEnum.term ();
+
+                if (term == null || !term.field ().equals (field) ||
+                    result.headings.size () >= rows) {
+                    break;
+                }
+
+                if (hasLiveDocs (termDocs, termEnum)) {
+                    if (skip > 0) {
+                        skip--;
+                    } else {
+                        result.headings.add (term.text ());
+                    }
+                }
+            } while (termEnum.next ());
+        } finally {
+            termDocs.close ();
+            termEnum.close ();
+        }
+
+        return result;
+    }
+
+
+    public HeadingSlice getKeyedHeadings (int rowid, int rows) throws Exception
+    {
+        HeadingSlice result = getHeadings (rowid, rows);
+
+        // Terms sort by their UTF-16 code units, and so do these.
+        result.keys = new ArrayList<byte[]> (result.headings.size ());
+
+        for (String heading : result.headings) {
+            byte[] key = new byte[heading.length () * 2];
+
+            for (int i = 0; i < heading.length (); i++) {
+                char ch = heading.charAt (i);
+                key[i * 2] = (byte) (ch >>> 8);
+                key[(i * 2) + 1] = (byte) ch;
+            }
+
+            result.keys.add (key);
+        }
+
+        return result;
     }
 }
 
 
 
-public class BrowseRequestHandler extends RequestHandlerBase
+/*
+ * The headings of several other sources merged into one list, for browsing
+ * bib data that's split over several indexes.  Members are merged on their
+ * sort keys, so they need to have been built with the same normaliser.  A
+ * heading that appears in more than one member is listed once.
+ *
+ * Rowids are positions in the merged list.  Rather than merging from the
+ * start for every request, we keep each member's position at every
+ * CHECKPOINT_INTERVAL'th merged heading and merge from the nearest one.
+ *
+ * Checkpoints are only good for the versions of the members they were built
+ * from, so each set of checkpoints keeps copies of those versions to read
+ * from.  When any member changes, the first request to notice starts a new
+ * set building in the background and swaps it in when it's done.  In the
+ * meantime requests carry on with the previous set (and its copies), and
+ * the copies are released once the last request using them finishes.  Only
+ * before the first set is built do requests merge from the start of every
+ * member, which is slow for headings deep into a big source, but keeps
+ * their rowids right.
+ */
+class FederatedHeadingsDB implements HeadingsDB
 {
-    private String authPath = null;
-    private String bibPath = null;
+    static int CHECKPOINT_INTERVAL = 1024;
+    static int FETCH_SIZE = 1024;
 
-    private Map<String,BrowseSource> sources = new HashMap<String,BrowseSource> ();
+    static class MergeIndex
+    {
+        long version;
+        int totalCount;
 
-    private SolrParams solrParams;
+        // checkpoints[i][m] is the rowid in member 'm' of the heading at
+        // merged position (i * CHECKPOINT_INTERVAL) + 1
+        int[][] checkpoints;
 
+        // Copies of the members the checkpoints were built from (null for
+        // an index built on the spot, which uses the request's members)
+        HeadingsDB[] members;
 
-    private String asAbsFile (String s)
+        // How many requests are using it, and whether it's been replaced
+        // (at which point the last of them releases the copies)
+        int users = 0;
+        boolean retired = false;
+    }
+
+
+    // Shared between a FederatedHeadingsDB and its per-request copies
+    static class SharedState
     {
-        File f = new File (s);
+        MergeIndex index;
+        boolean rebuilding = false;
 
-        if (!f.isAbsolute ()) {
-            return (new File (new File (System.getenv ("BROWSE_HOME")),
-                             f.getPath ()).getPath ());
-        } else {
-            return f.getPath ();
+        // Members are read from in parallel on these threads, one for each
+        // member.  Requests beyond that queue up for them.
+        ExecutorService fetchPool;
+    }
+
+
+    private SharedState state;
+    private HeadingsDB[] members;
+
+    // The checkpoints this request is using, and the member DBs they refer
+    // to (both set by reopenIfUpdated)
+    private MergeIndex index;
+    private HeadingsDB[] sources;
+
+    // The shared index we're holding on to, if any
+    private MergeIndex held;
+
+    // How many members have been reopened (and so need queryFinished)
+    private int opened = 0;
+
+
+    public FederatedHeadingsDB ()
+    {
+        this (new SharedState (), new HeadingsDB[0]);
+    }
+
+
+    private FederatedHeadingsDB (SharedState state, HeadingsDB[] members)
+    {
+        this.state = state;
+        this.members = members;
+    }
+
+
+    public HeadingsDB withSearcher (IndexSearcher searcher)
+    {
+        return this;
+    }
+
+
+    // The merge index is built for one ordering of the members
+    public HeadingsDB withOrdering (String order) throws Exception
+    {
+        if (order != null) {
+            throw new Exception ("Federated sources can't be browsed in another order");
         }
+
+        return this;
     }
 
 
-    public void init (NamedList args)
+    // A copy merging these members (as set up for the current request).
+    public FederatedHeadingsDB withMembers (HeadingsDB[] members)
     {
-        super.init (args);
+        synchronized (state) {
+            if (state.fetchPool == null) {
+                state.fetchPool = Executors.newFixedThreadPool
+                    (Math.max (members.length, 1),
+                     new ThreadFactory () {
+                         public Thread newThread (Runnable r)
+                         {
+                             Thread t = new Thread (r, "Browse member fetch");
+                             t.setDaemon (true);
+                             return t;
+                         }
+                     });
+            }
+        }
 
-        solrParams = SolrParams.toSolrParams (args);
+        return new FederatedHeadingsDB (state, members);
+    }
 
-        authPath = asAbsFile (solrParams.get ("authIndexPath"));
-        bibPath = asAbsFile (solrParams.get ("bibIndexPath"));
 
-        sources = new HashMap<String, BrowseSource> ();
+    private long membersVersion ()
+    {
+        long version = 17;
 
-        for (String source : Arrays.asList (solrParams.get
-                                            ("sources").split (","))) {
-            @SuppressWarnings("unchecked")
-            NamedList<String> entry = (NamedList<String>)args.get (source);
+        for (HeadingsDB member : members) {
+            version = (version * 31) + member.version ();
+        }
+
+        return version;
+    }
+
+
+    public void reopenIfUpdated () throws Exception
+    {
+        while (opened < members.length) {
+            members[opened].reopenIfUpdated ();
+            opened++;
+        }
+
+        long version = membersVersion ();
+        boolean rebuild = false;
+
+        synchronized (state) {
+            if (state.index != null && held == null) {
+                held = state.index;
+                held.users++;
+            }
+
+            if ((state.index == null || state.index.version != version) &&
+                !state.rebuilding) {
+                state.rebuilding = true;
+                rebuild = true;
+            }
+        }
+
+        if (held != null) {
+            // The last complete index, even if it's for older versions of
+            // the members: its copies still have the headings it indexes.
+            index = held;
+            sources = held.members;
+        } else {
+            index = startOnlyIndex (version);
+            sources = members;
+        }
+
+        if (rebuild) {
+            try {
+                rebuildInBackground (version);
+            } catch (Exception e) {
+                synchronized (state) {
+                    state.rebuilding = false;
+                }
 
-            sources.put (source,
-                         new BrowseSource (entry.get ("DBpath"),
-                                           entry.get ("field"),
-                                           entry.get ("dropChars")));
+                throw e;
+            }
         }
     }
 
 
-    private int asInt (String s)
+    // Checkpoints for the current members with just the one at the start,
+    // for use until the first complete index is built.  The total may count
+    // headings found in several members more than once.
+    private MergeIndex startOnlyIndex (long version) throws Exception
     {
-        int value;
+        MergeIndex result = new MergeIndex ();
+        int[] start = new int[members.length];
+        Arrays.fill (start, 1);
+
+        // Not the version of a complete index, so nothing cached against
+        // this one gets mixed up with what's cached once it's built.
+        result.version = ~version;
+        result.checkpoints = new int[][] {start};
+
+        for (HeadingsDB member : members) {
+            result.totalCount += member.getHeadings (1, 0).total;
+        }
+
+        return result;
+    }
+
+
+    private void rebuildInBackground (final long version) throws Exception
+    {
+        final HeadingsDB[] copies = new HeadingsDB[members.length];
+
         try {
-            return new Integer (s).intValue ();
-        } catch (NumberFormatException e) {
-            return 0;
+            for (int m = 0; m < members.length; m++) {
+                copies[m] = members[m].copy ();
+            }
+        } catch (Exception e) {
+            release (copies);
+            throw e;
         }
+
+        Background.submit (new Runnable () {
+                public void run ()
+                {
+                    MergeIndex built = null;
+
+                    try {
+                        built = new FederatedHeadingsDB (state, copies)
+                            .buildIndex (version);
+                    } catch (Exception e) {
+                        Log.info ("Failed to merge sources: " + e);
+                    }
+
+                    synchronized (state) {
+                        state.rebuilding = false;
+
+                        if (built != null) {
+                            MergeIndex previous = state.index;
+                            state.index = built;
+
+                            if (previous != null) {
+                                previous.retired = true;
+                                releaseIfUnused (previous);
+                            }
+                        }
+                    }
+
+                    if (built == null) {
+                        release (copies);
+                    }
+                }
+            });
     }
 
 
-    @Override
-    public void handleRequestBody (org.apache.solr.request.SolrQueryRequest req,
-                                   org.apache.solr.response.SolrQueryResponse rsp)
-        throws Exception
+    // Call with the state locked.
+    private static void releaseIfUnused (MergeIndex index)
     {
-        SolrParams p = req.getParams ();
+        if (index.retired && index.users == 0) {
+            release (index.members);
+        }
+    }
 
-        if (p.get ("reopen") != null) {
-            LuceneDB.reopenAllIfUpdated ();
-            return;
+
+    private static void release (HeadingsDB[] copies)
+    {
+        for (HeadingsDB copy : copies) {
+            if (copy != null) {
+                copy.release ();
+            }
         }
+    }
 
 
-        String sourceName = p.get ("source");
-        String from = p.get ("from");
+    public void queryFinished ()
+    {
+        for (int i = 0; i < opened; i++) {
+            members[i].queryFinished ();
+        }
 
-        int rowid = 1;
-        if (p.get ("rowid") != null) {
-            rowid = asInt (p.get ("rowid"));
+        opened = 0;
+
+        if (held != null) {
+            synchronized (state) {
+                held.users--;
+                releaseIfUnused (held);
+            }
+
+            held = null;
         }
+    }
 
-        int rows = asInt (p.get ("rows"));
 
-        int offset = (p.get ("offset") != null) ? asInt (p.get ("offset")) : 0;
+    public long version ()
+    {
+        return index.version;
+    }
 
-        if (rows < 0) {
-            throw new Exception ("Invalid value for parameter: rows");
+
+    public HeadingsDB copy () throws Exception
+    {
+        throw new Exception ("Federated sources can't be copied");
+    }
+
+
+    public void release ()
+    {
+    }
+
+
+    private MergeIndex buildIndex (long version) throws Exception
+    {
+        MergeIndex index = new MergeIndex ();
+        List<int[]> checkpoints = new ArrayList<int[]> ();
+
+        sources = members;
+
+        int[] start = new int[members.length];
+        Arrays.fill (start, 1);
+
+        Merger merger = new Merger (start, FETCH_SIZE);
+        int count = 0;
+
+        while (true) {
+            if ((count % CHECKPOINT_INTERVAL) == 0) {
+                checkpoints.add (merger.positions.clone ());
+            }
+
+            if (!merger.next ()) {
+                break;
+            }
+
+            count++;
         }
 
-        if (sourceName == null || !sources.containsKey (sourceName)) {
-            throw new Exception ("Need a (valid) source parameter.");
+        index.version = version;
+        index.totalCount = count;
+        index.checkpoints = checkpoints.toArray (new int[checkpoints.size ()][]);
+        index.members = members;
+
+        Log.info ("Merged " + members.length + " sources: " + count +
+                  " headings");
+
+        return index;
+    }
+
+
+    /*
+     * Walks the merged headings, starting from the given rowid in each
+     * member.
+     */
+    private class Merger
+    {
+        int[] positions;
+
+        String heading;
+        byte[] key;
+
+        private List<String>[] headings;
+        private List<byte[]>[] keys;
+        private int[] offsets;
+        private boolean[] exhausted;
+
+
+        @SuppressWarnings("unchecked")
+        Merger (int[] start, int expected) throws Exception
+        {
+            positions = start.clone ();
+            headings = new List[sources.length];
+            keys = new List[sources.length];
+            offsets = new int[sources.length];
+            exhausted = new boolean[sources.length];
+
+            // Get the first lot from every member at once
+            final int rows = Math.min (Math.max (expected, 16), FETCH_SIZE * 4);
+            List<FutureTask<HeadingSlice>> fetches =
+                new ArrayList<FutureTask<HeadingSlice>> ();
+
+            for (int m = 0; m < sources.length; m++) {
+                final HeadingsDB member = sources[m];
+                final int rowid = positions[m];
+
+                FutureTask<HeadingSlice> fetch = new FutureTask<HeadingSlice> (new Callable<HeadingSlice> () {
+                        public HeadingSlice call () throws Exception
+                        {
+                            return member.getKeyedHeadings (rowid, rows);
+                        }
+                    });
+
+                fetches.add (fetch);
+
+                if (m > 0) {
+                    state.fetchPool.execute (fetch);
+                }
+            }
+
+            if (!fetches.isEmpty ()) {
+                fetches.get (0).run ();
+            }
+
+            Exception failure = null;
+
+            for (int m = 0; m < sources.length; m++) {
+                try {
+                    fill (m, fetches.get (m).get (), rows);
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = (e.getCause () instanceof Exception) ?
+                            (Exception) e.getCause () : e;
+                    }
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
         }
 
 
-        BrowseSource source = sources.get (sourceName);
+        private void fill (int m, HeadingSlice slice, int requested)
+        {
+            headings[m] = slice.headings;
+            keys[m] = slice.keys;
+            offsets[m] = 0;
+            exhausted[m] = (slice.headings.size () < requested);
+        }
 
-        synchronized (this) {
-            if (source.browse == null) {
-                source.browse = (new Browse
-                                 (new HeadingsDB (source.DBpath),
-                                  new AuthDB
-                                  (authPath,
-                                   solrParams.get ("preferredHeadingField"),
-                                   solrParams.get ("useInsteadHeadingField"),
-                                   solrParams.get ("seeAlsoHeadingField"),
-                                   solrParams.get ("scopeNoteField"))));
+
+        // Whether member 'm' has a heading left, fetching more if needed.
+        private boolean available (int m) throws Exception
+        {
+            if (offsets[m] < headings[m].size ()) {
+                return true;
+            }
+
+            if (exhausted[m]) {
+                return false;
             }
 
-            source.browse.setBibDB (new BibDB (req.getSearcher (),
-                                               source.field));
+            fill (m, sources[m].getKeyedHeadings (positions[m], FETCH_SIZE),
+                  FETCH_SIZE);
+
+            return (offsets[m] < headings[m].size ());
         }
 
-        try {
-            source.browse.reopenDatabasesIfUpdated ();
 
-            if (from != null) {
-                rowid = (source.browse.getId (from));
+        // Compare member 'm's next heading with the given one.
+        private int compare (int m, byte[] otherKey, String otherHeading)
+        {
+            int result = Utils.compareKeys (keys[m].get (offsets[m]), otherKey);
+
+            if (result == 0) {
+                result = headings[m].get (offsets[m]).compareTo (otherHeading);
+            }
+
+            return result;
+        }
+
+
+        public boolean next () throws Exception
+        {
+            int best = -1;
+
+            for (int m = 0; m < sources.length; m++) {
+                if (available (m) &&
+                    (best < 0 || compare (m, key, heading) < 0)) {
+                    best = m;
+                    heading = headings[m].get (offsets[m]);
+                    key = keys[m].get (offsets[m]);
+                }
             }
 
+            if (best < 0) {
+                return false;
+            }
 
-            Log.info ("Browsing from: " + rowid);
+            // Take this heading from every member that has it under the same
+            // key (including the one it was picked from), so it's listed once
+            // however many members have it.
+            for (int m = 0; m < sources.length; m++) {
+                while (available (m) && compare (m, key, heading) == 0) {
+                    offsets[m]++;
+                    positions[m]++;
+                }
+            }
 
-            BrowseList list = source.browse.getList (rowid, offset, rows);
+            return true;
+        }
+    }
 
-            Map<String,Object> result = new HashMap<String, Object> ();
 
-            result.put ("totalCount", list.totalCount);
-            result.put ("items", list.asMap ());
-            result.put ("startRow", rowid);
-            result.put ("offset", offset);
+    // Whether every member in 'positions' is at or before its 'targets'.
+    private boolean atOrBefore (int[] positions, int[] targets)
+    {
+        for (int m = 0; m < positions.length; m++) {
+            if (positions[m] > targets[m]) {
+                return false;
+            }
+        }
 
-            rsp.add ("Browse", result);
-        } finally {
-            source.browse.queryFinished ();
+        return true;
+    }
+
+
+    private boolean reached (int[] positions, int[] targets)
+    {
+        for (int m = 0; m < positions.length; m++) {
+            if (positions[m] < targets[m]) {
+                return false;
+            }
         }
+
+        return true;
     }
 
 
-    //////////////////////// SolrInfoMBeans methods //////////////////////
+    public int getHeadingStart (final String from) throws Exception
+    {
+        List<FutureTask<Integer>> lookups = new ArrayList<FutureTask<Integer>> ();
+
+        for (final HeadingsDB member : sources) {
+            FutureTask<Integer> lookup = new FutureTask<Integer> (new Callable<Integer> () {
+                    public Integer call () throws Exception
+                    {
+                        return member.getHeadingStart (from);
+                    }
+                });
+
+            lookups.add (lookup);
+            state.fetchPool.execute (lookup);
+        }
+
+        int[] targets = new int[sources.length];
+
+        for (int m = 0; m < sources.length; m++) {
+            try {
+                targets[m] = lookups.get (m).get ();
+            } catch (ExecutionException e) {
+                throw (e.getCause () instanceof Exception) ?
+                    (Exception) e.getCause () : e;
+            }
+        }
+
+        // Find the last checkpoint before the heading in every member, then
+        // merge forwards until we've reached it in all of them.
+        int lo = 0;
+        int hi = index.checkpoints.length - 1;
+        int checkpoint = 0;
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (atOrBefore (index.checkpoints[mid], targets)) {
+                checkpoint = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        Merger merger = new Merger (index.checkpoints[checkpoint],
+                                    CHECKPOINT_INTERVAL);
+        int rowid = (checkpoint * CHECKPOINT_INTERVAL) + 1;
+
+        while (!reached (merger.positions, targets) && merger.next ()) {
+            rowid++;
+        }
+
+        return rowid;
+    }
+
+
+    private HeadingSlice getHeadings (int rowid, int rows, boolean withKeys)
+        throws Exception
+    {
+        HeadingSlice result = new HeadingSlice ();
+
+        result.total = (index.totalCount - rowid) + 1;
+
+        if (withKeys) {
+            result.keys = new ArrayList<byte[]> ();
+        }
+
+        if (rows <= 0) {
+            return result;
+        }
+
+        int position = Math.max (rowid, 1) - 1;
+        int checkpoint = Math.min (position / CHECKPOINT_INTERVAL,
+                                   index.checkpoints.length - 1);
+        int skip = position - (checkpoint * CHECKPOINT_INTERVAL);
+
+        Merger merger = new Merger (index.checkpoints[checkpoint], skip + rows);
+
+        while (result.headings.size () < rows && merger.next ()) {
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+
+            result.headings.add (merger.heading);
+
+            if (withKeys) {
+                result.keys.add (merger.key);
+            }
+        }
+
+        return result;
+    }
+
+
+    public HeadingSlice getHeadings (int rowid, int rows) throws Exception
+    {
+        return getHeadings (rowid, rows, false);
+    }
+
+
+    public HeadingSlice getKeyedHeadings (int rowid, int rows) throws Exception
+    {
+        return getHeadings (rowid, rows, true);
+    }
+}
+
+
+
+interface SearcherWarmer
+{
+    public void warm (IndexSearcher searcher) throws Exception;
+}
+
+
+
+class LuceneDB
+{
+    static Map<String,LuceneDB> dbs = new HashMap<String,LuceneDB> ();
+
+    // Matches the commit data written by IndexAuth
+    static String BUILD_ID = "buildId";
+
+    volatile IndexSearcher searcher;
+    String dbpath;
+    long currentVersion = -1;
+    String currentBuildId;
+
+    List<SearcherWarmer> warmers = new CopyOnWriteArrayList<SearcherWarmer> ();
+    boolean reopening = false;
+
+    // Held while taking a reference to the current reader and while swapping
+    // in a new one, so nobody takes a reference to a reader being retired
+    private final Object readerLock = new Object ();
+
+    // If enabled, an in-memory copy of the authority data, rebuilt for each
+    // new searcher before it's put into service
+    volatile AuthSnapshot snapshot;
+    volatile String[] snapshotFields;
+
+
+    public synchronized static LuceneDB getOrCreate (String path)
+        throws Exception
+    {
+        if (!dbs.containsKey (path)) {
+            LuceneDB db = new LuceneDB (path);
+            dbs.put (path, db);
+        }
+
+        return dbs.get (path);
+    }
+
+
+    public synchronized static void reopenAllIfUpdated ()
+        throws Exception
+    {
+        for (LuceneDB db : dbs.values ()) {
+            db.reopenIfUpdated ();
+        }
+    }
+
+
+    public LuceneDB (String path) throws Exception
+    {
+        this.dbpath = path;
+    }
+
+
+    public void addWarmer (SearcherWarmer warmer)
+    {
+        warmers.add (warmer);
+    }
+
+
+    /*
+     * Keep an AuthSnapshot of this index using the given fields.  The
+     * snapshot is built when the index is first opened (or straight away if
+     * it already is) and rebuilt in the background for every new version.
+     */
+    public synchronized void enableSnapshot (String preferredField,
+                                             String useInsteadField,
+                                             String seeAlsoField,
+                                             String noteField)
+        throws Exception
+    {
+        if (snapshotFields != null) {
+            return;
+        }
+
+        snapshotFields = new String[] {preferredField, useInsteadField,
+                                       seeAlsoField, noteField};
+
+        if (searcher != null) {
+            snapshot = buildSnapshot (searcher.getIndexReader ());
+        }
+    }
+
+
+    private AuthSnapshot buildSnapshot (IndexReader reader) throws Exception
+    {
+        long start = System.currentTimeMillis ();
+        AuthSnapshot result = new AuthSnapshot (reader,
+                                                snapshotFields[0],
+                                                snapshotFields[1],
+                                                snapshotFields[2],
+                                                snapshotFields[3],
+                                                AuthDB.MAX_PREFERRED_HEADINGS);
+
+        Log.info ("Built authority snapshot of " + dbpath + " with " +
+                  result.size () + " headings in " +
+                  (System.currentTimeMillis () - start) + " ms");
+
+        return result;
+    }
+
+
+    public AuthSnapshot snapshot ()
+    {
+        return snapshot;
+    }
+
+
+    private void openSearcher () throws Exception
+    {
+        long version = indexVersion ();
+        Directory dir = FSDirectory.open (new File (dbpath));
+        String buildId = IndexReader.getCommitUserData (dir).get (BUILD_ID);
+
+        IndexSearcher oldSearcher = searcher;
+        IndexReader dbReader = null;
+
+        // An index that was updated in place (rather than rebuilt and swapped
+        // in) can be reopened incrementally, sharing its unchanged segments
+        // with the reader we already have.
+        if (oldSearcher != null && buildId != null &&
+            buildId.equals (currentBuildId)) {
+            dbReader = IndexReader.openIfChanged (oldSearcher.getIndexReader ());
+
+            if (dbReader == null) {
+                // Nothing changed after all.
+                currentVersion = version;
+                return;
+            }
+        }
+
+        if (dbReader == null) {
+            dbReader = IndexReader.open (dir);
+        }
+
+        IndexSearcher newSearcher = new IndexSearcher (dbReader);
+
+        AuthSnapshot newSnapshot = null;
+
+        if (snapshotFields != null) {
+            try {
+                newSnapshot = buildSnapshot (dbReader);
+            } catch (Exception e) {
+                // Fall back to searching the index
+                Log.info ("Failed to build authority snapshot of " + dbpath +
+                          ": " + e);
+            }
+        }
+
+        if (oldSearcher != null) {
+            for (SearcherWarmer warmer : warmers) {
+                try {
+                    warmer.warm (newSearcher);
+                } catch (Exception e) {
+                    Log.info ("Failed to warm " + dbpath + ": " + e);
+                }
+            }
+        }
+
+        synchronized (this) {
+            synchronized (readerLock) {
+                // Before the searcher, so that anyone seeing the new version
+                // sees its snapshot too
+                snapshot = newSnapshot;
+                searcher = newSearcher;
+                currentVersion = version;
+                currentBuildId = buildId;
+            }
+        }
+
+        if (oldSearcher != null) {
+            // Closing the searcher leaves the reader we gave it open.  Drop
+            // our reference to that too: it's closed (along with any segments
+            // the new reader doesn't share) once the last lookup using it
+            // releases it.
+            oldSearcher.close ();
+            oldSearcher.getIndexReader ().decRef ();
+        }
+    }
+
+
+    // The current reader, which stays open until it's passed to
+    // releaseReader, even if a new version is swapped in meanwhile.
+    public IndexReader acquireReader ()
+    {
+        synchronized (readerLock) {
+            IndexReader reader = searcher.getIndexReader ();
+            reader.incRef ();
+
+            return reader;
+        }
+    }
+
+
+    public void releaseReader (IndexReader reader) throws IOException
+    {
+        reader.decRef ();
+    }
+
+
+    public TopDocs search (Query q, int n) throws Exception
+    {
+        return searcher.search (q, n);
+    }
+
+
+    private long indexVersion ()
+    {
+        return new File (dbpath + "/segments.gen").lastModified ();
+    }
+
+
+    private boolean isDBUpdated ()
+    {
+        return (currentVersion != indexVersion ());
+    }
+
+
+    public Document getDocument (int docid) throws Exception
+    {
+        return searcher.getIndexReader ().document (docid);
+    }
+
+
+    public long version ()
+    {
+        synchronized (readerLock) {
+            return searcher.getIndexReader ().getVersion ();
+        }
+    }
+
+
+    public synchronized void reopenIfUpdated () throws Exception
+    {
+        if (!isDBUpdated () || reopening) {
+            return;
+        }
+
+        if (searcher == null || (warmers.isEmpty () && snapshotFields == null)) {
+            openSearcher ();
+            Log.info ("Reopened " + searcher + " (" + dbpath + ")");
+            return;
+        }
+
+        // Open and warm the new version while we carry on using the old one.
+        reopening = true;
+
+        Background.submit (new Runnable () {
+                public void run ()
+                {
+                    try {
+                        openSearcher ();
+                        Log.info ("Reopened " + searcher + " (" + dbpath + ")");
+                    } catch (Exception e) {
+                        Log.info ("Failed to reopen " + dbpath + ": " + e);
+                    } finally {
+                        synchronized (LuceneDB.this) {
+                            reopening = false;
+                        }
+                    }
+                }
+            });
+    }
+}
+
+
+
+/*
+ * Everything getFields needs from the authority index, held in memory.  Each
+ * distinct string is stored once in 'strings' and everything else refers to
+ * it by position.  Entry i is for heading strings[headings[i]], and its
+ * seeAlso, note and useInstead values are the strings listed in
+ * refs[starts[3i] .. starts[3i + 1]), refs[starts[3i + 1] .. starts[3i + 2])
+ * and refs[starts[3i + 2] .. starts[3i + 3]).  Headings are found through an
+ * open-addressing hash table holding entry numbers plus one (zero for an
+ * empty slot).
+ */
+class AuthSnapshot
+{
+    private IndexReader reader;
+
+    private String[] strings;
+    private int[] headings;
+    private int[] starts;
+    private int[] refs;
+    private int[] table;
+
+
+    private static class Builder
+    {
+        Map<String, Integer> pool = new HashMap<String, Integer> ();
+        List<String> strings = new ArrayList<String> ();
+
+        Map<String, Integer> entries = new HashMap<String, Integer> ();
+        List<Integer> headings = new ArrayList<Integer> ();
+
+        // Per entry: whether it has an authority record, and its values
+        List<Boolean> hasRecord = new ArrayList<Boolean> ();
+        List<List<List<Integer>>> values = new ArrayList<List<List<Integer>>> ();
+
+        // How many records list each heading as 'insteadOf'
+        List<Integer> insteadOfRecords = new ArrayList<Integer> ();
+
+
+        int intern (String s)
+        {
+            Integer id = pool.get (s);
+
+            if (id == null) {
+                id = strings.size ();
+                pool.put (s, id);
+                strings.add (s);
+            }
+
+            return id;
+        }
+
+
+        int entry (String heading)
+        {
+            Integer id = entries.get (heading);
+
+            if (id == null) {
+                id = headings.size ();
+                entries.put (heading, id);
+                headings.add (intern (heading));
+                hasRecord.add (false);
+                insteadOfRecords.add (0);
+
+                List<List<Integer>> lists = new ArrayList<List<Integer>> ();
+                for (int i = 0; i < 3; i++) {
+                    lists.add (new ArrayList<Integer> ());
+                }
+
+                values.add (lists);
+            }
+
+            return id;
+        }
+
+
+        void add (int entry, int list, String[] strings)
+        {
+            if (strings != null) {
+                for (String value : strings) {
+                    values.get (entry).get (list).add (intern (value));
+                }
+            }
+        }
+    }
+
+
+    static final int SEE_ALSO = 0;
+    static final int NOTE = 1;
+    static final int USE_INSTEAD = 2;
+
+
+    /*
+     * Mirrors AuthDB's queries: a heading's seeAlso and note values come
+     * from the first record with it as its preferred heading.  Headings
+     * without a record of their own get the preferred headings of (up to
+     * 'maxPreferred') records listing them as 'insteadOf'.
+     */
+    public AuthSnapshot (IndexReader reader,
+                         String preferredField,
+                         String useInsteadField,
+                         String seeAlsoField,
+                         String noteField,
+                         int maxPreferred)
+        throws Exception
+    {
+        this.reader = reader;
+
+        Builder b = new Builder ();
+        FieldSelector selector = new MapFieldSelector (preferredField,
+                                                       useInsteadField,
+                                                       seeAlsoField,
+                                                       noteField);
+
+        for (int doc = 0; doc < reader.maxDoc (); doc++) {
+            if (reader.isDeleted (doc)) {
+                continue;
+            }
+
+            Document record = reader.document (doc, selector);
+            String[] preferred = record.getValues (preferredField);
+
+            if (preferred == null) {
+                preferred = new String[0];
+            }
+
+            for (String heading : preferred) {
+                int entry = b.entry (heading);
+
+                if (!b.hasRecord.get (entry)) {
+                    b.hasRecord.set (entry, true);
+                    b.add (entry, SEE_ALSO, record.getValues (seeAlsoField));
+                    b.add (entry, NOTE, record.getValues (noteField));
+                }
+            }
+
+            String[] insteadOf = record.getValues (useInsteadField);
+
+            if (insteadOf != null) {
+                for (String heading : insteadOf) {
+                    int entry = b.entry (heading);
+                    int seen = b.insteadOfRecords.get (entry);
+
+                    if (seen < maxPreferred) {
+                        b.insteadOfRecords.set (entry, seen + 1);
+                        b.add (entry, USE_INSTEAD, preferred);
+                    }
+                }
+            }
+        }
+
+        // Pack it all into arrays
+        strings = b.strings.toArray (new String[b.strings.size ()]);
+
+        int entries = b.headings.size ();
+        headings = new int[entries];
+        starts = new int[(3 * entries) + 1];
+
+        int total = 0;
+        for (int i = 0; i < entries; i++) {
+            for (List<Integer> list : b.values.get (i)) {
+                total += list.size ();
+            }
+        }
+
+        refs = new int[total];
+
+        int pos = 0;
+        for (int i = 0; i < entries; i++) {
+            headings[i] = b.headings.get (i);
+
+            boolean record = b.hasRecord.get (i);
+
+            for (int list = 0; list < 3; list++) {
+                starts[(3 * i) + list] = pos;
+
+                // useInstead only applies to headings without a record
+                if ((list == USE_INSTEAD) == record) {
+                    continue;
+                }
+
+                for (int value : b.values.get (i).get (list)) {
+                    refs[pos++] = value;
+                }
+            }
+        }
+
+        starts[3 * entries] = pos;
+
+        if (pos < refs.length) {
+            refs = Arrays.copyOf (refs, pos);
+        }
+
+        table = new int[Integer.highestOneBit (Math.max (entries, 1) * 2) * 2];
+
+        for (int i = 0; i < entries; i++) {
+            int slot = slot (strings[headings[i]]);
+
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+
+            table[slot] = i + 1;
+        }
+    }
+
+
+    private int slot (String heading)
+    {
+        int h = heading.hashCode ();
+
+        // Spread the higher bits down a little
+        h ^= (h >>> 16);
+
+        return h & (table.length - 1);
+    }
+
+
+    public IndexReader reader ()
+    {
+        return reader;
+    }
+
+
+    public int size ()
+    {
+        return headings.length;
+    }
+
+
+    // The entry for 'heading', or -1 if it isn't mentioned anywhere
+    public int find (String heading)
+    {
+        int slot = slot (heading);
+
+        while (table[slot] != 0) {
+            int entry = table[slot] - 1;
+
+            if (strings[headings[entry]].equals (heading)) {
+                return entry;
+            }
+
+            slot = (slot + 1) & (table.length - 1);
+        }
+
+        return -1;
+    }
+
+
+    // One of an entry's lists (SEE_ALSO, NOTE or USE_INSTEAD)
+    public List<String> values (int entry, int list)
+    {
+        if (entry < 0) {
+            return Collections.<String>emptyList ();
+        }
+
+        final int start = starts[(3 * entry) + list];
+        final int end = starts[(3 * entry) + list + 1];
+
+        if (start == end) {
+            return Collections.<String>emptyList ();
+        }
+
+        return new AbstractList<String> () {
+            public String get (int i)
+            {
+                return strings[refs[start + i]];
+            }
+
+            public int size ()
+            {
+                return end - start;
+            }
+        };
+    }
+
+
+    private static final List<String> FIELD_NAMES = Arrays.asList ("seeAlso",
+                                                                   "useInstead",
+                                                                   "note");
+    private static final int[] FIELD_LISTS = {SEE_ALSO, USE_INSTEAD, NOTE};
+
+
+    // An entry's values in the form AuthDB.getFields returns them, read
+    // straight from the snapshot's arrays as they're asked for.
+    public Map<String, List<String>> fields (final int entry)
+    {
+        return new AbstractMap<String, List<String>> () {
+            public List<String> get (Object key)
+            {
+                int field = FIELD_NAMES.indexOf (key);
+
+                if (field < 0) {
+                    return null;
+                }
+
+                return AuthSnapshot.this.values (entry, FIELD_LISTS[field]);
+            }
+
+            public boolean containsKey (Object key)
+            {
+                return FIELD_NAMES.contains (key);
+            }
+
+            public Set<Map.Entry<String, List<String>>> entrySet ()
+            {
+                Set<Map.Entry<String, List<String>>> result =
+                    new LinkedHashSet<Map.Entry<String, List<String>>> ();
+
+                for (int i = 0; i < FIELD_NAMES.size (); i++) {
+                    result.add (new AbstractMap.SimpleImmutableEntry<String, List<String>>
+                                (FIELD_NAMES.get (i),
+                                 AuthSnapshot.this.values (entry, FIELD_LISTS[i])));
+                }
+
+                return result;
+            }
+        };
+    }
+}
+
+
+
+/*
+ * Visits a sorted list of terms of one field using a single TermEnum and
+ * TermDocs.  Terms close to the last one are reached by stepping the
+ * TermEnum forwards; only big jumps go back to the term dictionary's index.
+ */
+class TermWalker
+{
+    // How far to step through the terms before giving up and seeking
+    private static final int MAX_STEPS = 32;
+
+    private IndexReader reader;
+    private String field;
+    private TermEnum terms = null;
+    private TermDocs termDocs;
+
+
+    public TermWalker (IndexReader reader, String field) throws IOException
+    {
+        this.reader = reader;
+        this.field = field;
+        termDocs = reader.termDocs ();
+    }
+
+
+    /*
+     * Move to 'text' (which mustn't sort before the last term we moved to),
+     * returning true and positioning docs () on its postings if the field
+     * has it.
+     */
+    public boolean seek (String text) throws IOException
+    {
+        Term target = new Term (field, text);
+
+        if (terms == null) {
+            terms = reader.terms (target);
+        } else {
+            int steps = 0;
+
+            while (terms.term () != null && terms.term ().compareTo (target) < 0) {
+                if (++steps > MAX_STEPS) {
+                    terms.close ();
+                    terms = reader.terms (target);
+                    break;
+                }
+
+                if (!terms.next ()) {
+                    return false;
+                }
+            }
+        }
+
+        Term term = terms.term ();
+
+        if (term == null ||
+            !term.field ().equals (field) ||
+            !term.text ().equals (text)) {
+            return false;
+        }
+
+        termDocs.seek (terms);
+
+        return true;
+    }
+
+
+    public TermDocs docs ()
+    {
+        return termDocs;
+    }
+
+
+    public void close () throws IOException
+    {
+        if (terms != null) {
+            terms.close ();
+        }
+
+        termDocs.close ();
+    }
+}
+
+
+
+class AuthDB implements SearcherWarmer
+{
+    static int MAX_PREFERRED_HEADINGS = 1000;
+
+    private LuceneDB db;
+    private String preferredHeadingField;
+    private String useInsteadHeadingField;
+    private String seeAlsoHeadingField;
+    private String scopeNoteField;
+
+    // The headings we've looked up most recently, for warming new versions
+    // of the index.
+    private AtomicReferenceArray<String> recentHeadings;
+    private AtomicInteger nextRecent = new AtomicInteger ();
+
+    public AuthDB (String path,
+                   String preferredField,
+                   String useInsteadField,
+                   String seeAlsoField,
+                   String noteField)
+        throws Exception
+    {
+        db = LuceneDB.getOrCreate (path);
+        preferredHeadingField = preferredField;
+        useInsteadHeadingField = useInsteadField;
+        seeAlsoHeadingField = seeAlsoField;
+        scopeNoteField = noteField;
+    }
+
+
+    public void enableSnapshot () throws Exception
+    {
+        db.enableSnapshot (preferredHeadingField,
+                           useInsteadHeadingField,
+                           seeAlsoHeadingField,
+                           scopeNoteField);
+    }
+
+
+    private List<String> docValues (Document doc, String field)
+    {
+        String values[] = doc.getValues (field);
+
+        if (values == null) {
+            values = new String[] {};
+        }
+
+        return Arrays.asList (values);
+    }
+
+
+    public void reopenIfUpdated () throws Exception
+    {
+        db.reopenIfUpdated ();
+    }
+
+
+    public long version ()
+    {
+        return db.version ();
+    }
+
+
+    public void enableWarming (int sampleSize)
+    {
+        recentHeadings = new AtomicReferenceArray<String> (sampleSize);
+        db.addWarmer (this);
+    }
+
+
+    public void warm (IndexSearcher searcher) throws Exception
+    {
+        Set<String> headings = new HashSet<String> ();
+
+        for (int i = 0; i < recentHeadings.length (); i++) {
+            if (recentHeadings.get (i) != null) {
+                headings.add (recentHeadings.get (i));
+            }
+        }
+
+        for (String heading : headings) {
+            for (String field : new String[] {preferredHeadingField,
+                                              useInsteadHeadingField}) {
+                TopDocs results = searcher.search (new TermQuery (new Term (field,
+                                                                            heading)),
+                                                   1);
+
+                if (results.totalHits > 0) {
+                    searcher.getIndexReader ().document (results.scoreDocs[0].doc);
+                }
+            }
+        }
+
+        Log.info ("Warmed authority index with " + headings.size () +
+                  " headings");
+    }
+
+
+    private static Map<String, List<String>> noFields ()
+    {
+        Map<String, List<String>> itemValues =
+            new HashMap<String,List<String>> ();
+
+        itemValues.put ("seeAlso", new ArrayList<String>());
+        itemValues.put ("useInstead", new ArrayList<String>());
+        itemValues.put ("note", new ArrayList<String>());
+
+        return itemValues;
+    }
+
+
+    /*
+     * Look up the seeAlso, useInstead and note values for each of
+     * 'headings'.  Without a snapshot we sort the headings into term order
+     * and walk the preferred heading field once (for the headings with
+     * authority records) and then the insteadOf field once (for those
+     * without), loading just the stored fields we need.
+     */
+    public Map<String, Map<String, List<String>>> getFields (Collection<String> headings)
+        throws Exception
+    {
+        Map<String, Map<String, List<String>>> result =
+            new HashMap<String, Map<String, List<String>>> ();
+
+        if (recentHeadings != null) {
+            for (String heading : headings) {
+                int slot = ((nextRecent.getAndIncrement () & Integer.MAX_VALUE) %
+                            recentHeadings.length ());
+                recentHeadings.set (slot, heading);
+            }
+        }
+
+        AuthSnapshot snapshot = db.snapshot ();
+
+        if (snapshot != null) {
+            for (String heading : headings) {
+                result.put (heading, snapshot.fields (snapshot.find (heading)));
+            }
+
+            return result;
+        }
+
+        // Hold on to the reader so a reopen doesn't close it under us
+        IndexReader reader = db.acquireReader ();
+
+        try {
+            readFields (reader, headings, result);
+        } finally {
+            db.releaseReader (reader);
+        }
+
+        return result;
+    }
+
+
+    private void readFields (IndexReader reader, Collection<String> headings,
+                             Map<String, Map<String, List<String>>> result)
+        throws Exception
+    {
+        List<String> sorted = new ArrayList<String> (new TreeSet<String> (headings));
+        List<String> withoutRecords = new ArrayList<String> ();
+
+        FieldSelector recordFields = new MapFieldSelector (seeAlsoHeadingField,
+                                                           scopeNoteField);
+        TermWalker preferred = new TermWalker (reader, preferredHeadingField);
+
+        try {
+            for (String heading : sorted) {
+                Map<String, List<String>> itemValues = noFields ();
+                result.put (heading, itemValues);
+
+                if (!preferred.seek (heading) || !preferred.docs ().next ()) {
+                    withoutRecords.add (heading);
+                    continue;
+                }
+
+                Document authInfo = reader.document (preferred.docs ().doc (),
+                                                     recordFields);
+
+                itemValues.get ("seeAlso").addAll (docValues (authInfo,
+                                                              seeAlsoHeadingField));
+                itemValues.get ("note").addAll (docValues (authInfo,
+                                                           scopeNoteField));
+            }
+        } finally {
+            preferred.close ();
+        }
+
+        FieldSelector preferredFields = new MapFieldSelector (preferredHeadingField);
+        TermWalker insteadOf = new TermWalker (reader, useInsteadHeadingField);
+
+        try {
+            for (String heading : withoutRecords) {
+                if (!insteadOf.seek (heading)) {
+                    continue;
+                }
+
+                List<String> useInstead = result.get (heading).get ("useInstead");
+                TermDocs docs = insteadOf.docs ();
+
+                for (int i = 0; i < MAX_PREFERRED_HEADINGS && docs.next (); i++) {
+                    Document doc = reader.document (docs.doc (), preferredFields);
+                    useInstead.addAll (docValues (doc, preferredHeadingField));
+                }
+            }
+        } finally {
+            insteadOf.close ();
+        }
+    }
+}
+
+
+
+class BibDB
+{
+    // How many terms a batch lookup gets through between checks of the clock
+    private static final int LOOKUP_CHUNK = 32;
+
+    private IndexSearcher db;
+    private String field;
+
+    // If set, only records in here count
+    private DocSet filter;
+
+    public BibDB (IndexSearcher searcher, String field) throws Exception
+    {
+        this (searcher, field, null);
+    }
+
+
+    public BibDB (IndexSearcher searcher, String field, DocSet filter)
+        throws Exception
+    {
+        db = searcher;
+        this.field = field;
+        this.filter = filter;
+    }
+
+
+    public IndexSearcher searcher ()
+    {
+        return db;
+    }
+
+
+    // Changes whenever counts or ids might.
+    public long version ()
+    {
+        return db.getIndexReader ().getVersion ();
+    }
+
+
+    // Called once a request is done with this BibDB.
+    public void release ()
+    {
+    }
+
+
+    public int recordCount (String heading)
+        throws Exception
+    {
+        // Just count the live postings for the term: nothing needs scoring
+        // or collecting.
+        TermDocs termDocs = db.getIndexReader ().termDocs (new Term (field,
+                                                                     heading));
+        int hits = 0;
+
+        try {
+            int[] docs = new int[128];
+            int[] freqs = new int[128];
+            int n;
+
+            while ((n = termDocs.read (docs, freqs)) > 0) {
+                if (filter == null) {
+                    hits += n;
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        if (filter.exists (docs[i])) {
+                            hits++;
+                        }
+                    }
+                }
+            }
+        } finally {
+            termDocs.close ();
+        }
+
+        return hits;
+    }
+
+
+    /*
+     * Count the records matching 'heading', keeping the (ascending) docids of
+     * at most 'limit' of them, starting from the 'offset'th.  A negative limit
+     * keeps them all.
+     */
+    public MatchingDocs matchingDocs (String heading, int offset, int limit)
+        throws Exception
+    {
+        MatchingDocs result = new MatchingDocs ();
+        int[] page = new int[(limit >= 0) ? Math.min (limit, 128) : 128];
+        int kept = 0;
+
+        TermDocs termDocs = db.getIndexReader ().termDocs (new Term (field,
+                                                                     heading));
+
+        try {
+            int[] docs = new int[128];
+            int[] freqs = new int[128];
+            int n;
+
+            while ((n = termDocs.read (docs, freqs)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (filter != null && !filter.exists (docs[i])) {
+                        continue;
+                    }
+
+                    int position = result.count++;
+
+                    if (position < offset ||
+                        (limit >= 0 && kept >= limit)) {
+                        continue;
+                    }
+
+                    if (kept == page.length) {
+                        page = Arrays.copyOf (page, page.length * 2);
+                    }
+
+                    page[kept++] = docs[i];
+                }
+            }
+        } finally {
+            termDocs.close ();
+        }
+
+        result.docs = Arrays.copyOf (page, kept);
+
+        return result;
+    }
+
+
+    /*
+     * The record ids of the given documents, loading nothing else from the
+     * stored fields.
+     */
+    public List<String> storedIDs (int[] docs) throws Exception
+    {
+        FieldSelector idOnly = new MapFieldSelector (new String[] {"id"});
+        List<String> ids = new ArrayList<String> (docs.length);
+
+        for (int docid : docs) {
+            try {
+                Document doc = db.getIndexReader ().document (docid, idOnly);
+
+                String[] vals = doc.getValues ("id");
+                ids.add (vals[0]);
+            } catch (org.apache.lucene.index.CorruptIndexException e) {
+                Log.info ("CORRUPT INDEX EXCEPTION.  EEK! - " + e);
+            } catch (Exception e) {
+                Log.info ("Exception thrown: " + e);
+            }
+        }
+
+        return ids;
+    }
+
+
+    /*
+     * Add the ids of (at most 'limit' of) the records matching 'heading' to
+     * 'ids', skipping the first 'offset'.  Returns the total number of
+     * matching records.
+     */
+    public int matchingIDs (String heading, int offset, int limit,
+                            List<String> ids)
+        throws Exception
+    {
+        MatchingDocs matches = matchingDocs (heading, offset, limit);
+        ids.addAll (storedIDs (matches.docs));
+
+        return matches.count;
+    }
+
+
+    public Map<String, MatchingDocs> lookup (Collection<String> terms,
+                                             Set<String> listed,
+                                             int offset, int limit,
+                                             boolean withIds)
+        throws Exception
+    {
+        return lookup (terms, listed, offset, limit, withIds, 0);
+    }
+
+
+    /*
+     * Count the records matching each of 'terms' in a single pass: the terms
+     * are sorted and each segment's term dictionary is walked once, by one
+     * TermWalker for the whole lookup (whose TermDocs skips deleted
+     * documents for us).  Terms in
+     * 'listed' also get the docids of (at most 'limit' of) their records
+     * from the 'offset'th, along with their record ids if 'withIds' is set.
+     *
+     * The terms are looked up LOOKUP_CHUNK at a time, checking the clock
+     * between chunks.  If 'deadline' (in milliseconds, zero for none)
+     * passes, the terms we didn't get to are left out of the result.
+     */
+    public Map<String, MatchingDocs> lookup (Collection<String> terms,
+                                             Set<String> listed,
+                                             int offset, int limit,
+                                             boolean withIds,
+                                             long deadline)
+        throws Exception
+    {
+        List<String> sorted = new ArrayList<String> (new TreeSet<String> (terms));
+        Map<String, MatchingDocs> result = new HashMap<String, MatchingDocs> ();
+
+        IndexReader reader = db.getIndexReader ();
+        IndexReader[] segments = reader.getSequentialSubReaders ();
+
+        if (segments == null) {
+            segments = new IndexReader[] {reader};
+        }
+
+        TermWalker[] walkers = new TermWalker[segments.length];
+
+        try {
+            for (int s = 0; s < segments.length; s++) {
+                walkers[s] = new TermWalker (segments[s], field);
+            }
+
+            lookupChunks (sorted, segments, walkers, listed, offset, limit,
+                          withIds, deadline, result);
+        } finally {
+            for (TermWalker walker : walkers) {
+                if (walker != null) {
+                    walker.close ();
+                }
+            }
+        }
+
+        return result;
+    }
+
+
+    // Look up 'sorted' a chunk at a time, each segment's walker carrying on
+    // from where the previous chunk left it.
+    private void lookupChunks (List<String> sorted,
+                               IndexReader[] segments,
+                               TermWalker[] walkers,
+                               Set<String> listed,
+                               int offset, int limit,
+                               boolean withIds,
+                               long deadline,
+                               Map<String, MatchingDocs> result)
+        throws Exception
+    {
+        int[] docs = new int[128];
+        int[] freqs = new int[128];
+
+        for (int first = 0; first < sorted.size (); first += LOOKUP_CHUNK) {
+            if (deadline > 0 && System.currentTimeMillis () >= deadline) {
+                break;
+            }
+
+            List<String> chunk =
+                sorted.subList (first, Math.min (first + LOOKUP_CHUNK,
+                                                 sorted.size ()));
+
+            MatchingDocs[] matches = new MatchingDocs[chunk.size ()];
+            int[] kept = new int[chunk.size ()];
+
+            for (int t = 0; t < matches.length; t++) {
+                matches[t] = new MatchingDocs ();
+
+                if (listed.contains (chunk.get (t))) {
+                    matches[t].docs = new int[(limit >= 0) ? Math.min (limit, 128) : 128];
+                }
+            }
+
+            int docBase = 0;
+
+            for (int s = 0; s < segments.length; s++) {
+                TermWalker walker = walkers[s];
+
+                for (int t = 0; t < matches.length; t++) {
+                    if (!walker.seek (chunk.get (t))) {
+                        continue;
+                    }
+
+                    MatchingDocs m = matches[t];
+                    TermDocs termDocs = walker.docs ();
+                    int n;
+
+                    while ((n = termDocs.read (docs, freqs)) > 0) {
+                        if (filter == null && m.docs == null) {
+                            m.count += n;
+                            continue;
+                        }
+
+                        for (int i = 0; i < n; i++) {
+                            int doc = docBase + docs[i];
+
+                            if (filter != null && !filter.exists (doc)) {
+                                continue;
+                            }
+
+                            int position = m.count++;
+
+                            if (m.docs == null || position < offset ||
+                                (limit >= 0 && kept[t] >= limit)) {
+                                continue;
+                            }
+
+                            if (kept[t] == m.docs.length) {
+                                m.docs = Arrays.copyOf (m.docs, m.docs.length * 2);
+                            }
+
+                            m.docs[kept[t]++] = doc;
+                        }
+                    }
+                }
+
+                docBase += segments[s].maxDoc ();
+            }
+
+            for (int t = 0; t < matches.length; t++) {
+                if (matches[t].docs != null) {
+                    matches[t].docs = Arrays.copyOf (matches[t].docs, kept[t]);
+
+                    if (withIds) {
+                        matches[t].ids = storedIDs (matches[t].docs);
+                    }
+                }
+
+                result.put (chunk.get (t), matches[t]);
+            }
+        }
+    }
+}
+
+
+
+/*
+ * The bib indexes of each member of a federated source, counted together.
+ */
+class FederatedBibDB extends BibDB
+{
+    private BibDB[] members;
+
+
+    public FederatedBibDB (BibDB[] members) throws Exception
+    {
+        super (null, null);
+        this.members = members;
+    }
+
+
+    public long version ()
+    {
+        long version = 17;
+
+        for (BibDB member : members) {
+            version = (version * 31) + member.version ();
+        }
+
+        return version;
+    }
+
+
+    public void release ()
+    {
+        for (BibDB member : members) {
+            member.release ();
+        }
+    }
+
+
+    public int recordCount (String heading) throws Exception
+    {
+        int count = 0;
+
+        for (BibDB member : members) {
+            count += member.recordCount (heading);
+        }
+
+        return count;
+    }
+
+
+    public MatchingDocs matchingDocs (String heading, int offset, int limit)
+        throws Exception
+    {
+        throw new Exception ("Docids aren't available for federated sources");
+    }
+
+
+    // Ids are listed one member after another.
+    public int matchingIDs (String heading, int offset, int limit,
+                            List<String> ids)
+        throws Exception
+    {
+        int count = 0;
+        int listed = 0;
+
+        for (BibDB member : members) {
+            List<String> memberIds = new ArrayList<String> ();
+
+            count += member.matchingIDs (heading,
+                                         Math.max (0, offset - count),
+                                         (limit < 0) ? -1 : (limit - listed),
+                                         memberIds);
+
+            ids.addAll (memberIds);
+            listed += memberIds.size ();
+        }
+
+        return count;
+    }
+
+
+    // Counts come from a batch lookup against each member, and only terms
+    // that every member got to before the deadline are counted.  Listing ids
+    // has to work out where each member's ids start, so that's done one term
+    // at a time.
+    public Map<String, MatchingDocs> lookup (Collection<String> terms,
+                                             Set<String> listed,
+                                             int offset, int limit,
+                                             boolean withIds,
+                                             long deadline)
+        throws Exception
+    {
+        if (!withIds && !listed.isEmpty ()) {
+            throw new Exception ("Docids aren't available for federated sources");
+        }
+
+        Map<String, MatchingDocs> result = new HashMap<String, MatchingDocs> ();
+        Set<String> counted = new HashSet<String> (terms);
+        counted.removeAll (listed);
+
+        for (String term : counted) {
+            result.put (term, new MatchingDocs ());
+        }
+
+        for (BibDB member : members) {
+            Map<String, MatchingDocs> counts =
+                member.lookup (counted, Collections.<String>emptySet (),
+                               0, 0, false, deadline);
+
+            result.keySet ().retainAll (counts.keySet ());
+
+            for (Map.Entry<String, MatchingDocs> entry : result.entrySet ()) {
+                entry.getValue ().count += counts.get (entry.getKey ()).count;
+            }
+        }
+
+        for (String term : listed) {
+            if (deadline > 0 && System.currentTimeMillis () >= deadline) {
+                break;
+            }
+
+            MatchingDocs m = new MatchingDocs ();
+            m.ids = new ArrayList<String> ();
+            m.count = matchingIDs (term, offset, limit, m.ids);
+
+            result.put (term, m);
+        }
+
+        return result;
+    }
+}
+
+
+
+class MatchingDocs
+{
+    // How many records matched in total
+    public int count = 0;
+
+    // The docids of the ones that were asked for
+    public int[] docs;
+
+    // ... and their record ids (if they were asked for)
+    public List<String> ids;
+}
+
+
+
+/*
+ * For a filtered browse, how many headings in each fixed-size block of rowids
+ * have records matching the filter.  A block's count is filled in the first
+ * time a browse walks all the way through it, and from then on the block can
+ * be stepped over without looking at its headings.
+ */
+class FilterSkipIndex
+{
+    public static final int BLOCK_SIZE = 256;
+
+    private AtomicIntegerArray counts;
+
+
+    public FilterSkipIndex (int headingCount)
+    {
+        counts = new AtomicIntegerArray ((headingCount + BLOCK_SIZE - 1) /
+                                         BLOCK_SIZE);
+
+        for (int i = 0; i < counts.length (); i++) {
+            counts.set (i, -1);
+        }
+    }
+
+
+    // The number of matching headings in 'block', or -1 if not known yet.
+    public int count (int block)
+    {
+        return (block < counts.length ()) ? counts.get (block) : -1;
+    }
+
+
+    public void setCount (int block, int count)
+    {
+        if (block < counts.length ()) {
+            counts.set (block, count);
+        }
+    }
+}
+
+
+
+class BrowseList
+{
+    public int totalCount;
+
+    // Where the list starts relative to the row it was asked for
+    public int offset;
+    public List<BrowseItem> items = new ArrayList<BrowseItem> ();
+
+    // Set if we ran out of time and left some items with just their heading
+    public boolean partial = false;
+
+
+    public List<NamedList<Object>> asNamedLists (Set<String> fields)
+    {
+        List<NamedList<Object>> result =
+            new ArrayList<NamedList<Object>> (items.size ());
+
+        for (BrowseItem item : items) {
+            result.add (item.asNamedList (fields));
+        }
+
+        return result;
+    }
+
+
+    // A rough idea of how much heap this list (and its response form)
+    // occupies.
+    public long sizeEstimate ()
+    {
+        long size = 64;
+
+        for (BrowseItem item : items) {
+            size += item.sizeEstimate ();
+        }
+
+        return size;
+    }
+}
+
+
+
+class BrowseItem
+{
+    // The parts of an item that a client can ask for (besides its heading,
+    // which they always get)
+    static final List<String> FIELDS = Arrays.asList ("count", "ids", "seeAlso",
+                                                      "useInstead", "note");
+
+    public List<String> seeAlso = Collections.<String>emptyList ();
+    public List<String> useInstead = Collections.<String>emptyList ();
+    public String note = "";
+    public String heading;
+    public List<String> ids;
+    public int[] docids;
+    int count;
+
+    // Set if there wasn't time to look up anything but the heading
+    public boolean headingOnly = false;
+
+
+    public BrowseItem (String heading)
+    {
+        this.heading = heading;
+    }
+
+
+    public static boolean wanted (Set<String> fields, String field)
+    {
+        return (fields == null || fields.contains (field));
+    }
+
+
+    // The item as it goes in the response, with its parts always in the
+    // same order: the heading, then the FIELDS that were asked for.
+    public NamedList<Object> asNamedList (Set<String> fields)
+    {
+        NamedList<Object> result = new SimpleOrderedMap<Object> ();
+
+        result.add ("heading", heading);
+
+        if (headingOnly) {
+            return result;
+        }
+
+        if (wanted (fields, "count")) {
+            result.add ("count", count);
+        }
+
+        if (wanted (fields, "ids")) {
+            if (docids != null) {
+                result.add ("docids", asList (docids));
+            } else {
+                result.add ("ids", ids);
+            }
+        }
+
+        if (wanted (fields, "seeAlso")) {
+            result.add ("seeAlso", seeAlso);
+        }
+
+        if (wanted (fields, "useInstead")) {
+            result.add ("useInstead", useInstead);
+        }
+
+        if (wanted (fields, "note")) {
+            result.add ("note", note);
+        }
+
+        return result;
+    }
+
+
+    private static List<Integer> asList (final int[] values)
+    {
+        return new AbstractList<Integer> () {
+            public Integer get (int i)
+            {
+                return values[i];
+            }
+
+            public int size ()
+            {
+                return values.length;
+            }
+        };
+    }
+
+
+    private static long sizeEstimate (String s)
+    {
+        return (s == null) ? 0 : 40 + (2 * s.length ());
+    }
+
+
+    private static long sizeEstimate (List<String> values)
+    {
+        long size = 24;
+
+        if (values != null) {
+            for (String value : values) {
+                size += 8 + sizeEstimate (value);
+            }
+        }
+
+        return size;
+    }
+
+
+    public long sizeEstimate ()
+    {
+        return (200 +
+                sizeEstimate (heading) +
+                sizeEstimate (note) +
+                sizeEstimate (seeAlso) +
+                sizeEstimate (useInstead) +
+                sizeEstimate (ids) +
+                ((docids == null) ? 0 : 16 + (4L * docids.length)));
+    }
+}
+
+
+
+
+/*
+ * A histogram of how long something took, in microseconds.  Each power of
+ * two is split into four buckets, so percentiles are reported to within 25%.
+ * Recording is just a couple of atomic increments, so it's cheap enough to do
+ * on every call.
+ */
+class LatencyHistogram
+{
+    // Enough for anything up to 2^40 microseconds
+    static final int BUCKETS = 160;
+
+    private AtomicLongArray buckets = new AtomicLongArray (BUCKETS);
+    private AtomicLong errors = new AtomicLong ();
+
+
+    private static int bucket (long micros)
+    {
+        if (micros < 4) {
+            return (int) Math.max (micros, 0);
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros (micros);
+        int quarter = (int) ((micros >>> (exponent - 2)) & 3);
+
+        return Math.min (((exponent - 1) * 4) + quarter, BUCKETS - 1);
+    }
+
+
+    // The largest value that falls into 'bucket'.
+    private static long upperBound (int bucket)
+    {
+        if (bucket < 4) {
+            return bucket;
+        }
+
+        int exponent = (bucket / 4) + 1;
+        int quarter = bucket % 4;
+
+        return ((5L + quarter) << (exponent - 2)) - 1;
+    }
+
+
+    // Record something that started at 'startNanos' (from System.nanoTime)
+    // and just finished, or just failed.
+    public void record (long startNanos, boolean succeeded)
+    {
+        if (succeeded) {
+            buckets.incrementAndGet (bucket ((System.nanoTime () - startNanos) / 1000));
+        } else {
+            errors.incrementAndGet ();
+        }
+    }
+
+
+    public void addStatistics (String prefix, NamedList stats)
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get (i);
+            total += counts[i];
+        }
+
+        stats.add (prefix + ".count", total);
+        stats.add (prefix + ".errors", errors.get ());
+        stats.add (prefix + ".p50Micros", percentile (counts, total, 0.50));
+        stats.add (prefix + ".p95Micros", percentile (counts, total, 0.95));
+        stats.add (prefix + ".p99Micros", percentile (counts, total, 0.99));
+    }
+
+
+    private static long percentile (long[] counts, long total, double fraction)
+    {
+        long wanted = (long) Math.ceil (total * fraction);
+        long seen = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+
+            if (seen >= wanted && seen > 0) {
+                return upperBound (i);
+            }
+        }
+
+        return 0;
+    }
+}
+
+
+
+// How long each stage of browsing a source takes
+class SourceMetrics
+{
+    public LatencyHistogram getHeadingStart = new LatencyHistogram ();
+    public LatencyHistogram getHeadings = new LatencyHistogram ();
+    public LatencyHistogram matchingIDs = new LatencyHistogram ();
+    public LatencyHistogram recordCount = new LatencyHistogram ();
+    public LatencyHistogram authFields = new LatencyHistogram ();
+
+    // Requests turned away for being over the source's concurrency limit, and
+    // those that ran out of time
+    public AtomicLong rejected = new AtomicLong ();
+    public AtomicLong partial = new AtomicLong ();
+
+
+    @SuppressWarnings("unchecked")
+    public void addStatistics (String source, NamedList stats)
+    {
+        getHeadingStart.addStatistics (source + ".getHeadingStart", stats);
+        getHeadings.addStatistics (source + ".getHeadings", stats);
+        matchingIDs.addStatistics (source + ".matchingIDs", stats);
+        recordCount.addStatistics (source + ".recordCount", stats);
+        authFields.addStatistics (source + ".getFields", stats);
+        stats.add (source + ".rejected", rejected.get ());
+        stats.add (source + ".partial", partial.get ());
+    }
+}
+
+
+
+class Browse
+{
+    // How many headings a filtered walk checks for matches at once
+    private static final int WALK_CHUNK = 32;
+
+    private HeadingsDB headingsDB;
+    private AuthDB authDB;
+    private BibDB bibDB;
+    private SourceMetrics metrics;
+
+
+    public Browse (HeadingsDB headings, AuthDB auth, BibDB bib,
+                   SourceMetrics metrics)
+    {
+        headingsDB = headings;
+        authDB = auth;
+        bibDB = bib;
+        this.metrics = metrics;
+    }
+
+
+    // The same browse, kept out of the source's metrics (for work done in the
+    // background rather than for a request)
+    public Browse unmetered ()
+    {
+        return new Browse (headingsDB, authDB, bibDB, new SourceMetrics ());
+    }
+
+
+    // Timed versions of the calls we make for each stage of a browse
+
+    private int headingStart (String from) throws Exception
+    {
+        long start = System.nanoTime ();
+        boolean ok = false;
+        Trace.Span span = Trace.begin ("getHeadingStart");
+
+        try {
+            int result = headingsDB.getHeadingStart (from);
+            ok = true;
+            return result;
+        } finally {
+            metrics.getHeadingStart.record (start, ok);
+            Trace.end (span);
+        }
+    }
+
+
+    private HeadingSlice headings (int rowid, int rows) throws Exception
+    {
+        long start = System.nanoTime ();
+        boolean ok = false;
+        Trace.Span span = Trace.begin ("getHeadings");
+
+        try {
+            HeadingSlice result = headingsDB.getHeadings (rowid, rows);
+            ok = true;
+            return result;
+        } finally {
+            metrics.getHeadings.record (start, ok);
+            Trace.end (span);
+        }
+    }
+
+
+    private Map<String, MatchingDocs> lookup (Collection<String> terms,
+                                              Set<String> listed,
+                                              BrowseQuery query)
+        throws Exception
+    {
+        long start = System.nanoTime ();
+        boolean ok = false;
+        Trace.Span span = Trace.begin ("lookup");
+
+        try {
+            Map<String, MatchingDocs> result = bibDB.lookup (terms, listed,
+                                                             query.idsOffset,
+                                                             query.idsRows,
+                                                             !query.docids,
+                                                             query.deadline);
+            ok = true;
+            return result;
+        } finally {
+            Trace.end (span);
+
+            if (listed.isEmpty ()) {
+                metrics.recordCount.record (start, ok);
+            } else {
+                metrics.matchingIDs.record (start, ok);
+            }
+        }
+    }
+
+
+    private int count (String heading) throws Exception
+    {
+        long start = System.nanoTime ();
+        boolean ok = false;
+        Trace.Span span = Trace.begin ("recordCount");
+
+        try {
+            int result = bibDB.recordCount (heading);
+            ok = true;
+            return result;
+        } finally {
+            metrics.recordCount.record (start, ok);
+            Trace.end (span);
+        }
+    }
+
+
+    private Map<String, Map<String, List<String>>> authFields (List<String> headings)
+        throws Exception
+    {
+        long start = System.nanoTime ();
+        boolean ok = false;
+        Trace.Span span = Trace.begin ("getFields");
+
+        try {
+            Map<String, Map<String, List<String>>> result =
+                authDB.getFields (headings);
+            ok = true;
+            return result;
+        } finally {
+            metrics.authFields.record (start, ok);
+            Trace.end (span);
+        }
+    }
+
+
+    public void reopenDatabasesIfUpdated () throws Exception
+    {
+        headingsDB.reopenIfUpdated ();
+        authDB.reopenIfUpdated ();
+    }
+
+
+    public long headingsVersion ()
+    {
+        return headingsDB.version ();
+    }
+
+
+    public long authVersion ()
+    {
+        return authDB.version ();
+    }
+
+
+    public int headingCount () throws Exception
+    {
+        return headingsDB.getHeadings (1, 0).total;
+    }
+
+
+    public long bibVersion ()
+    {
+        return bibDB.version ();
+    }
+
+
+    public void queryFinished ()
+    {
+        headingsDB.queryFinished ();
+        bibDB.release ();
+    }
+
+
+    private static boolean wantsAuthFields (Set<String> wanted)
+    {
+        return (BrowseItem.wanted (wanted, "seeAlso") ||
+                BrowseItem.wanted (wanted, "useInstead") ||
+                BrowseItem.wanted (wanted, "note"));
+    }
+
+
+    // Fill in the parts of 'item' that 'query' asks for, given its authority
+    // 'fields' and the bib 'matches' for the page (each if they're wanted).
+    private void populateItem (BrowseItem item, BrowseQuery query,
+                               Map<String, List<String>> fields,
+                               Map<String, MatchingDocs> matches)
+    {
+        Set<String> wanted = query.fields;
+
+        if (BrowseItem.wanted (wanted, "ids")) {
+            MatchingDocs m = matches.get (item.heading);
+
+            item.count = m.count;
+
+            if (query.docids) {
+                item.docids = m.docs;
+            } else {
+                item.ids = m.ids;
+            }
+        } else if (BrowseItem.wanted (wanted, "count")) {
+            item.count = matches.get (item.heading).count;
+        }
+
+        if (!wantsAuthFields (wanted)) {
+            return;
+        }
+
+        if (BrowseItem.wanted (wanted, "seeAlso")) {
+            item.seeAlso = withRecords (fields.get ("seeAlso"), matches);
+        }
+
+        if (BrowseItem.wanted (wanted, "useInstead")) {
+            item.useInstead = withRecords (fields.get ("useInstead"), matches);
+        }
+
+        if (BrowseItem.wanted (wanted, "note")) {
+            for (String value : fields.get ("note")) {
+                item.note = value;
+            }
+        }
+    }
+
+
+    // The 'headings' that have at least one record.
+    private static List<String> withRecords (List<String> headings,
+                                             Map<String, MatchingDocs> matches)
+    {
+        if (headings.isEmpty ()) {
+            return Collections.<String>emptyList ();
+        }
+
+        List<String> result = new ArrayList<String> (headings.size ());
+
+        for (String heading : headings) {
+            if (matches.get (heading).count > 0) {
+                result.add (heading);
+            }
+        }
+
+        return result;
+    }
+
+
+    public int getId (String from) throws Exception
+    {
+        return headingStart (from);
+    }
+
+
+    // Just the headings, with nothing else looked up.
+    public List<String> getHeadings (int rowid, int rows) throws Exception
+    {
+        return headings (rowid, rows).headings;
+    }
+
+
+    public int recordCount (String heading) throws Exception
+    {
+        return count (heading);
+    }
+
+
+    public BrowseList getList (int rowid, int offset, int rows,
+                               BrowseQuery query)
+        throws Exception
+    {
+        BrowseList result = new BrowseList ();
+
+        HeadingSlice h = headings (Math.max (0, rowid + offset), rows);
+
+        result.totalCount = h.total;
+        result.offset = offset;
+
+        addItems (result, h.headings, query);
+
+        return result;
+    }
+
+
+    /*
+     * Add an item to 'list' for each heading.  The authority records for the
+     * whole page are looked up together, and then everything we need from
+     * the bib index (the headings' counts and ids, and the counts of the
+     * headings they refer to) in a single batch.  If the query's deadline
+     * passes part way through, the items the batch got to are filled in and
+     * the rest just get their headings.
+     */
+    private void addItems (BrowseList list, List<String> headings,
+                           BrowseQuery query)
+        throws Exception
+    {
+        Set<String> wanted = query.fields;
+        Map<String, Map<String, List<String>>> auth = null;
+        Map<String, MatchingDocs> matches = null;
+
+        if (!headings.isEmpty () && !query.pastDeadline ()) {
+            if (wantsAuthFields (wanted)) {
+                auth = authFields (headings);
+            }
+
+            Set<String> terms = new HashSet<String> ();
+            Set<String> listed = new HashSet<String> ();
+
+            if (BrowseItem.wanted (wanted, "ids")) {
+                listed.addAll (headings);
+            }
+
+            if (BrowseItem.wanted (wanted, "ids") ||
+                BrowseItem.wanted (wanted, "count")) {
+                terms.addAll (headings);
+            }
+
+            for (String field : new String[] {"seeAlso", "useInstead"}) {
+                if (BrowseItem.wanted (wanted, field)) {
+                    for (Map<String, List<String>> fields : auth.values ()) {
+                        terms.addAll (fields.get (field));
+                    }
+                }
+            }
+
+            if (terms.isEmpty ()) {
+                matches = Collections.<String, MatchingDocs>emptyMap ();
+            } else {
+                matches = lookup (terms, listed, query);
+            }
+        }
+
+        for (String heading : headings) {
+            BrowseItem item = new BrowseItem (heading);
+            Map<String, List<String>> fields =
+                (auth != null) ? auth.get (heading) : null;
+
+            if (matches != null && resolved (heading, fields, wanted, matches)) {
+                populateItem (item, query, fields, matches);
+            } else {
+                item.headingOnly = true;
+                markPartial (list);
+            }
+
+            list.items.add (item);
+        }
+    }
+
+
+    // Whether 'matches' has everything the item for 'heading' needs.
+    private static boolean resolved (String heading,
+                                     Map<String, List<String>> fields,
+                                     Set<String> wanted,
+                                     Map<String, MatchingDocs> matches)
+    {
+        if ((BrowseItem.wanted (wanted, "ids") ||
+             BrowseItem.wanted (wanted, "count")) &&
+            !matches.containsKey (heading)) {
+            return false;
+        }
+
+        for (String field : new String[] {"seeAlso", "useInstead"}) {
+            if (BrowseItem.wanted (wanted, field) &&
+                !matches.keySet ().containsAll (fields.get (field))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    private void markPartial (BrowseList list)
+    {
+        if (!list.partial) {
+            list.partial = true;
+            metrics.partial.incrementAndGet ();
+        }
+    }
+
+
+    /*
+     * Like getList, but only listing headings with records that match the
+     * BibDB's filter.  'offset' and 'rows' count matching headings, and
+     * 'skip' remembers which blocks of headings have no matches (or how many)
+     * so that later pages can step over them.
+     */
+    public BrowseList getFilteredList (int rowid, int offset, int rows,
+                                       BrowseQuery query, FilterSkipIndex skip)
+        throws Exception
+    {
+        BrowseList result = new BrowseList ();
+        int headingCount = headingCount ();
+        int start = Math.max (rowid, 1);
+
+        if (offset < 0) {
+            // Find the first of the 'offset' matching headings before 'rowid'
+            int[] found = new int[1];
+            start = walkBackwards (start - 1, -offset, skip, headingCount,
+                                   found, start, query);
+
+            result.offset = -found[0];
+
+            if (query.around) {
+                rows -= (-offset - found[0]);
+            }
+        } else {
+            start = walkForwards (start, offset, skip, headingCount, null,
+                                  query);
+            result.offset = offset;
+        }
+
+        result.totalCount = Math.max ((headingCount - start) + 1, 0);
+
+        List<String> headings = new ArrayList<String> ();
+        walkForwards (start, rows, skip, headingCount, headings, query);
+
+        // The walks stop where they are if the deadline passes
+        if (query.pastDeadline ()) {
+            markPartial (result);
+        }
+
+        addItems (result, headings, query);
+
+        return result;
+    }
+
+
+    /*
+     * Which of 'headings' have records matching the BibDB's filter, looked
+     * up in one pass over the bib index rather than one term at a time.
+     */
+    private boolean[] matching (List<String> headings) throws Exception
+    {
+        Map<String, MatchingDocs> matches =
+            bibDB.lookup (headings, Collections.<String>emptySet (), 0, 0, true);
+        boolean[] result = new boolean[headings.size ()];
+
+        for (int i = 0; i < result.length; i++) {
+            MatchingDocs m = matches.get (headings.get (i));
+            result[i] = (m != null && m.count > 0);
+        }
+
+        return result;
+    }
+
+
+    /*
+     * Step forwards from 'rowid' past 'n' matching headings (adding them to
+     * 'collect' if it's not null), returning the next rowid to look at.
+     * Headings are checked WALK_CHUNK at a time, and the walk gives up early
+     * (between chunks) if the query's deadline passes.
+     */
+    private int walkForwards (int rowid, int n, FilterSkipIndex skip,
+                              int headingCount, List<String> collect,
+                              BrowseQuery query)
+        throws Exception
+    {
+        int found = 0;
+        int position = rowid;
+        int blockSize = FilterSkipIndex.BLOCK_SIZE;
+
+        while (found < n && position <= headingCount && !query.pastDeadline ()) {
+            int block = (position - 1) / blockSize;
+            int blockStart = (block * blockSize) + 1;
+            int blockEnd = Math.min (blockStart + blockSize - 1, headingCount);
+            int known = skip.count (block);
+
+            if (known == 0 ||
+                (known > 0 && collect == null && position == blockStart &&
+                 found + known <= n)) {
+                found += known;
+                position = blockEnd + 1;
+                continue;
+            }
+
+            boolean wholeBlock = (position == blockStart);
+            int matches = 0;
+            List<String> headings =
+                headings (position, (blockEnd - position) + 1).headings;
+
+            for (int first = 0;
+                 first < headings.size () && found < n && !query.pastDeadline ();
+                 first += WALK_CHUNK) {
+                List<String> chunk =
+                    headings.subList (first, Math.min (first + WALK_CHUNK,
+                                                       headings.size ()));
+                boolean[] matching = matching (chunk);
+
+                for (int i = 0; i < chunk.size () && found < n; i++) {
+                    if (matching[i]) {
+                        found++;
+                        matches++;
+
+                        if (collect != null) {
+                            collect.add (chunk.get (i));
+                        }
+                    }
+
+                    position++;
+                }
+            }
+
+            if (wholeBlock && position > blockEnd) {
+                skip.setCount (block, matches);
+            }
+
+            if (position <= blockEnd) {
+                break;
+            }
+        }
+
+        return position;
+    }
+
+
+    /*
+     * Step backwards from 'rowid' looking for 'n' matching headings.  Returns
+     * a rowid at or before the earliest one found (or 'otherwise' if there
+     * were none) and stores how many were found in found[0].  Like
+     * walkForwards, checks headings WALK_CHUNK at a time and gives up early
+     * if the query's deadline passes.
+     */
+    private int walkBackwards (int rowid, int n, FilterSkipIndex skip,
+                               int headingCount, int[] found, int otherwise,
+                               BrowseQuery query)
+        throws Exception
+    {
+        int position = Math.min (rowid, headingCount);
+        int earliest = otherwise;
+        int blockSize = FilterSkipIndex.BLOCK_SIZE;
+
+        found[0] = 0;
+
+        while (found[0] < n && position >= 1 && !query.pastDeadline ()) {
+            int block = (position - 1) / blockSize;
+            int blockStart = (block * blockSize) + 1;
+            int blockEnd = Math.min (blockStart + blockSize - 1, headingCount);
+            int known = skip.count (block);
+
+            if (known == 0) {
+                position = blockStart - 1;
+                continue;
+            }
+
+            if (known > 0 && position == blockEnd && found[0] + known <= n) {
+                // The block's matches all count, and the walk forwards will
+                // find them again starting from here.
+                found[0] += known;
+                earliest = blockStart;
+                position = blockStart - 1;
+                continue;
+            }
+
+            boolean wholeBlock = (position == blockEnd);
+            int matches = 0;
+            List<String> headings = new ArrayList<String>
+                (headings (blockStart, (position - blockStart) + 1).headings);
+
+            for (int last = headings.size ();
+                 last > 0 && found[0] < n && !query.pastDeadline ();
+                 last -= WALK_CHUNK) {
+                int first = Math.max (last - WALK_CHUNK, 0);
+                List<String> chunk = headings.subList (first, last);
+                boolean[] matching = matching (chunk);
+
+                for (int i = chunk.size () - 1; i >= 0 && found[0] < n; i--) {
+                    if (matching[i]) {
+                        found[0]++;
+                        matches++;
+                        earliest = blockStart + first + i;
+                    }
+
+                    position--;
+                }
+            }
+
+            if (wholeBlock && position < blockStart) {
+                skip.setCount (block, matches);
+            }
+
+            if (position >= blockStart) {
+                break;
+            }
+        }
+
+        return earliest;
+    }
+}
+
+
+
+/*
+ * The items of an export, read from a HeadingCursor as the response writer
+ * asks for them rather than gathered up front.  Counts are looked up
+ * BATCH_SIZE headings at a time, and headings with no matching records are
+ * dropped if the export is filtered.
+ *
+ * The cursor and bib index are released once the last item has been read (or
+ * reading fails), or by close () if the response is abandoned part way.
+ */
+class Export implements Iterator<NamedList<Object>>, Closeable
+{
+    static final int BATCH_SIZE = 256;
+
+    private HeadingCursor cursor;
+    private BibDB bibDB;
+    private boolean counts;
+    private boolean filtered;
+
+    private List<String> batch = new ArrayList<String> (BATCH_SIZE);
+    private Map<String, MatchingDocs> matches;
+    private int position = 0;
+    private boolean finished = false;
+
+
+    // 'bibDB' is only needed for counts or filtering.
+    public Export (HeadingCursor cursor, BibDB bibDB, boolean counts,
+                   boolean filtered)
+    {
+        this.cursor = cursor;
+        this.bibDB = bibDB;
+        this.counts = counts;
+        this.filtered = filtered;
+    }
+
+
+    public void close ()
+    {
+        finished = true;
+        cursor.close ();
+
+        if (bibDB != null) {
+            bibDB.release ();
+            bibDB = null;
+        }
+    }
+
+
+    // Read the next batch of headings that have something to show, closing
+    // everything if there aren't any.
+    private void fill () throws Exception
+    {
+        while (position >= batch.size () && !finished) {
+            batch.clear ();
+            position = 0;
+
+            while (batch.size () < BATCH_SIZE && cursor.next ()) {
+                batch.add (cursor.heading ());
+            }
+
+            if (batch.isEmpty ()) {
+                close ();
+                return;
+            }
+
+            if (bibDB != null) {
+                matches = bibDB.lookup (batch, Collections.<String>emptySet (),
+                                        0, 0, true);
+            }
+
+            if (filtered) {
+                Iterator<String> it = batch.iterator ();
+                while (it.hasNext ()) {
+                    if (matches.get (it.next ()).count == 0) {
+                        it.remove ();
+                    }
+                }
+            }
+        }
+    }
+
+
+    public boolean hasNext ()
+    {
+        try {
+            fill ();
+        } catch (Exception e) {
+            close ();
+            throw new RuntimeException (e);
+        }
+
+        return position < batch.size ();
+    }
+
+
+    public NamedList<Object> next ()
+    {
+        if (!hasNext ()) {
+            throw new NoSuchElementException ();
+        }
+
+        String heading = batch.get (position++);
+        NamedList<Object> item = new SimpleOrderedMap<Object> ();
+
+        item.add ("heading", heading);
+
+        if (counts) {
+            item.add ("count", matches.get (heading).count);
+        }
+
+        return item;
+    }
+
+
+    public void remove ()
+    {
+        throw new UnsupportedOperationException ();
+    }
+}
+
+
+
+/*
+ * A cache of complete browse results, bounded by the (estimated) number of
+ * bytes they occupy.  Keys include the versions of every index that went into
+ * a result, so entries for old versions are never returned and just age out.
+ *
+ * If several threads miss on the same key at once, only one of them computes
+ * the result and the others wait for it.  Results cut short by a deadline
+ * aren't shared, since the waiters' deadlines may allow for more.
+ */
+class BrowseCache
+{
+    static class Entry
+    {
+        public Object value;
+        public long bytes;
+
+        // Partial results are handed back to the request that made them, but
+        // never kept or shared (see get)
+        public boolean cacheable = true;
+
+        public Entry (Object value, long bytes)
+        {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+
+    private long maxBytes;
+    private long currentBytes = 0;
+
+    private LinkedHashMap<String,Entry> entries =
+        new LinkedHashMap<String,Entry> (1024, 0.75f, true);
+
+    private ConcurrentHashMap<String,FutureTask<Entry>> loading =
+        new ConcurrentHashMap<String,FutureTask<Entry>> ();
+
+    private AtomicLong hits = new AtomicLong ();
+    private AtomicLong misses = new AtomicLong ();
+    private AtomicLong sharedLoads = new AtomicLong ();
+    private AtomicLong evictions = new AtomicLong ();
+    private AtomicLong prefetches = new AtomicLong ();
+
+
+    public BrowseCache (long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+
+    public static String key (Object... parts)
+    {
+        StringBuilder sb = new StringBuilder ();
+
+        for (Object part : parts) {
+            sb.append (part);
+            sb.append ('\0');
+        }
+
+        return sb.toString ();
+    }
+
+
+    private synchronized Entry lookup (String key)
+    {
+        return entries.get (key);
+    }
+
+
+    private synchronized void store (String key, Entry entry)
+    {
+        if (!entry.cacheable || entry.bytes > maxBytes) {
+            return;
+        }
+
+        Entry old = entries.put (key, entry);
+        if (old != null) {
+            currentBytes -= old.bytes;
+        }
+
+        currentBytes += entry.bytes;
+
+        Iterator<Entry> it = entries.values ().iterator ();
+        while (currentBytes > maxBytes && it.hasNext ()) {
+            currentBytes -= it.next ().bytes;
+            it.remove ();
+            evictions.incrementAndGet ();
+        }
+    }
+
+
+    private Entry await (FutureTask<Entry> task) throws Exception
+    {
+        try {
+            return task.get ();
+        } catch (ExecutionException e) {
+            if (e.getCause () instanceof Exception) {
+                throw (Exception) e.getCause ();
+            }
+
+            throw e;
+        }
+    }
+
+
+    public Object get (String key, Callable<Entry> loader) throws Exception
+    {
+        Entry entry = lookup (key);
+
+        if (entry != null) {
+            hits.incrementAndGet ();
+            return entry.value;
+        }
+
+        misses.incrementAndGet ();
+
+        FutureTask<Entry> task = new FutureTask<Entry> (loader);
+        FutureTask<Entry> inFlight = loading.putIfAbsent (key, task);
+
+        if (inFlight != null) {
+            sharedLoads.incrementAndGet ();
+            Entry shared = await (inFlight);
+
+            if (shared.cacheable) {
+                return shared.value;
+            }
+
+            // The request we waited on ran out of time, but its deadline
+            // isn't ours.  Our own loader gets as far as our deadline allows.
+            return loader.call ().value;
+        }
+
+        try {
+            task.run ();
+            Entry loaded = await (task);
+            store (key, loaded);
+
+            return loaded.value;
+        } finally {
+            loading.remove (key, task);
+        }
+    }
+
+
+    /*
+     * Load an entry we think will be wanted soon, unless it's already cached
+     * or on its way.  Doesn't count towards the hit and miss statistics.
+     */
+    public void prefetch (String key, Callable<Entry> loader) throws Exception
+    {
+        if (lookup (key) != null) {
+            return;
+        }
+
+        FutureTask<Entry> task = new FutureTask<Entry> (loader);
+
+        if (loading.putIfAbsent (key, task) != null) {
+            return;
+        }
+
+        try {
+            task.run ();
+            store (key, task.get ());
+            prefetches.incrementAndGet ();
+        } finally {
+            loading.remove (key, task);
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    public void addStatistics (NamedList stats)
+    {
+        long h = hits.get ();
+        long m = misses.get ();
+
+        stats.add ("cacheHits", h);
+        stats.add ("cacheMisses", m);
+        stats.add ("cacheHitRatio", (h + m) > 0 ? (float)h / (h + m) : 0.0f);
+        stats.add ("cacheSharedLoads", sharedLoads.get ());
+        stats.add ("cacheEvictions", evictions.get ());
+        stats.add ("cachePrefetches", prefetches.get ());
+
+        synchronized (this) {
+            stats.add ("cacheSize", entries.size ());
+            stats.add ("cacheBytes", currentBytes);
+        }
+
+        stats.add ("cacheMaxBytes", maxBytes);
+    }
+}
+
+
+
+/*
+ * The parameters of a single browse request.
+ */
+class BrowseQuery implements Cloneable
+{
+    public String source;
+    public String from;
+    public int rowid = 1;
+    public int offset = 0;
+    public int rows = 0;
+
+    // Whether this is a request for the headings either side of 'from' (in
+    // which case 'offset' and 'rows' cover both sides)
+    public boolean around = false;
+
+    // The parts of each item to fill in (null for all of them)
+    public Set<String> fields = null;
+
+    // Which of each heading's matching records to list (a negative
+    // 'idsRows' lists all of them), and whether to list them by Lucene docid
+    // instead of record id
+    public int idsOffset = 0;
+    public int idsRows = -1;
+    public boolean docids = false;
+
+    // Filter queries restricting which records count (null for none)
+    public List<String> fq = null;
+    public List<Query> filters = null;
+
+    // Which of the headings DB's sort orders to browse (null for its main one)
+    public String order = null;
+
+    // When (in System.currentTimeMillis terms) to stop filling in items and
+    // just list their headings (zero for no deadline).  Not part of the key:
+    // results that miss their deadline aren't cached.
+    public long deadline = 0;
+
+
+    public BrowseQuery (String source)
+    {
+        this.source = source;
+    }
+
+
+    public BrowseQuery withOffset (int offset)
+    {
+        try {
+            BrowseQuery result = (BrowseQuery) clone ();
+            result.offset = offset;
+
+            return result;
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException (e);
+        }
+    }
+
+
+    // The same query for running in the background, where nobody's waiting
+    public BrowseQuery withoutDeadline ()
+    {
+        BrowseQuery result = withOffset (offset);
+        result.deadline = 0;
+
+        return result;
+    }
+
+
+    public boolean pastDeadline ()
+    {
+        return (deadline > 0 && System.currentTimeMillis () >= deadline);
+    }
+
+
+    // Everything that affects the result of this query
+    public String key ()
+    {
+        return BrowseCache.key (source, from, rowid, offset, rows, around,
+                                fields, idsOffset, idsRows, docids, fq, order);
+    }
+
+
+    public boolean equals (Object obj)
+    {
+        return (obj instanceof BrowseQuery) && key ().equals (((BrowseQuery) obj).key ());
+    }
+
+
+    public int hashCode ()
+    {
+        return key ().hashCode ();
+    }
+}
+
+
+
+/*
+ * Suggests headings starting with whatever a user has typed so far, most used
+ * first.  Every heading of a source is held in memory along with the number
+ * of bib records using it, sorted on a folded form of the heading (lowercase,
+ * no accents, runs of punctuation as a single space) so that the headings
+ * matching a prefix sit together.
+ *
+ * To find the most used headings in a range quickly we keep the largest
+ * count in each block of BLOCK_SIZE headings and skip any block that can't
+ * beat what we've already found.  Answers for short prefixes are worked out
+ * in advance.
+ */
+class HeadingSuggester
+{
+    static final int BLOCK_SIZE = 64;
+    static final int PRECOMPUTED = 10;
+    static final int PRECOMPUTED_PREFIX_LENGTH = 2;
+
+
+    static class Suggestions
+    {
+        long version;
+        String[] headings;
+        String[] folded;
+        int[] counts;
+        int[] blockMax;
+
+        // The indexes of the PRECOMPUTED most used headings for each prefix
+        // up to PRECOMPUTED_PREFIX_LENGTH characters long
+        Map<String, int[]> top = new HashMap<String, int[]> ();
+    }
+
+
+    static class Entry
+    {
+        String folded;
+        String heading;
+        int count;
+    }
+
+
+    private volatile Suggestions suggestions;
+    private boolean rebuilding = false;
+
+
+    public static String fold (String s)
+    {
+        String decomposed = java.text.Normalizer.normalize (s, java.text.Normalizer.Form.NFD);
+        StringBuilder result = new StringBuilder (decomposed.length ());
+        boolean gap = false;
+
+        for (int i = 0; i < decomposed.length (); i++) {
+            char ch = decomposed.charAt (i);
+
+            if (Character.getType (ch) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+
+            if (Character.isLetterOrDigit (ch)) {
+                if (gap && result.length () > 0) {
+                    result.append (' ');
+                }
+
+                result.append (Character.toLowerCase (ch));
+                gap = false;
+            } else {
+                gap = true;
+            }
+        }
+
+        return result.toString ();
+    }
+
+
+    // Like fold, but keeping a trailing gap so that "new " doesn't match
+    // "newcastle".
+    private static String foldPrefix (String prefix)
+    {
+        String folded = fold (prefix);
+
+        if (folded.length () > 0 && prefix.length () > 0 &&
+            !Character.isLetterOrDigit (prefix.charAt (prefix.length () - 1))) {
+            folded += " ";
+        }
+
+        return folded;
+    }
+
+
+    public long version ()
+    {
+        Suggestions s = suggestions;
+        return (s == null) ? -1 : s.version;
+    }
+
+
+    public synchronized boolean startRebuild ()
+    {
+        if (rebuilding) {
+            return false;
+        }
+
+        rebuilding = true;
+        return true;
+    }
+
+
+    public synchronized void rebuildFinished ()
+    {
+        rebuilding = false;
+    }
+
+
+    // Replace the current suggestions with these headings and counts.
+    public void load (long version, List<String> headings, int[] counts)
+    {
+        Entry[] entries = new Entry[headings.size ()];
+
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new Entry ();
+            entries[i].heading = headings.get (i);
+            entries[i].folded = fold (entries[i].heading);
+            entries[i].count = counts[i];
+        }
+
+        Arrays.sort (entries, new Comparator<Entry> () {
+                public int compare (Entry a, Entry b)
+                {
+                    int result = a.folded.compareTo (b.folded);
+                    return (result != 0) ? result : a.heading.compareTo (b.heading);
+                }
+            });
+
+        Suggestions s = new Suggestions ();
+
+        s.version = version;
+        s.headings = new String[entries.length];
+        s.folded = new String[entries.length];
+        s.counts = new int[entries.length];
+        s.blockMax = new int[(entries.length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+
+        for (int i = 0; i < entries.length; i++) {
+            s.headings[i] = entries[i].heading;
+            s.folded[i] = entries[i].folded;
+            s.counts[i] = entries[i].count;
+            s.blockMax[i / BLOCK_SIZE] = Math.max (s.blockMax[i / BLOCK_SIZE],
+                                                   entries[i].count);
+        }
+
+        // Headings sharing a prefix are next to each other, so each prefix's
+        // range ends where the next prefix starts.
+        s.top.put ("", top (s, 0, entries.length, PRECOMPUTED));
+
+        for (int length = 1; length <= PRECOMPUTED_PREFIX_LENGTH; length++) {
+            int start = 0;
+
+            while (start < entries.length) {
+                if (entries[start].folded.length () < length) {
+                    start++;
+                    continue;
+                }
+
+                String prefix = entries[start].folded.substring (0, length);
+                int end = start + 1;
+
+                while (end < entries.length &&
+                       entries[end].folded.startsWith (prefix)) {
+                    end++;
+                }
+
+                s.top.put (prefix, top (s, start, end, PRECOMPUTED));
+                start = end;
+            }
+        }
+
+        suggestions = s;
+    }
+
+
+    /*
+     * The indexes of the 'k' most used headings between 'start' and 'end',
+     * most used first.  Ties go to the heading that sorts first.
+     */
+    private static int[] top (final Suggestions s, int start, int end, int k)
+    {
+        if (k <= 0) {
+            return new int[0];
+        }
+
+        // The best we've seen so far, worst first
+        PriorityQueue<Integer> best = new PriorityQueue<Integer> (k, new Comparator<Integer> () {
+                public int compare (Integer a, Integer b)
+                {
+                    if (s.counts[a] != s.counts[b]) {
+                        return (s.counts[a] < s.counts[b]) ? -1 : 1;
+                    }
+
+                    return b.compareTo (a);
+                }
+            });
+
+        int i = start;
+
+        while (i < end) {
+            int blockStart = (i / BLOCK_SIZE) * BLOCK_SIZE;
+            int blockEnd = Math.min (blockStart + BLOCK_SIZE, end);
+
+            if (i == blockStart && blockEnd == blockStart + BLOCK_SIZE &&
+                best.size () == k &&
+                s.blockMax[i / BLOCK_SIZE] <= s.counts[best.peek ()]) {
+                // Nothing in this block could make the cut
+                i = blockEnd;
+                continue;
+            }
+
+            for (; i < blockEnd; i++) {
+                if (best.size () < k) {
+                    best.add (i);
+                } else if (s.counts[i] > s.counts[best.peek ()]) {
+                    best.poll ();
+                    best.add (i);
+                }
+            }
+        }
+
+        int[] result = new int[best.size ()];
+
+        for (int j = result.length - 1; j >= 0; j--) {
+            result[j] = best.poll ();
+        }
+
+        return result;
+    }
+
+
+    // The position of the first heading whose folded form sorts at or after
+    // 'folded'.
+    private static int lowerBound (Suggestions s, String folded)
+    {
+        int lo = 0;
+        int hi = s.headings.length;
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (s.folded[mid].compareTo (folded) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+
+    public List<NamedList<Object>> suggest (String prefix, int k)
+    {
+        List<NamedList<Object>> result = new ArrayList<NamedList<Object>> ();
+        Suggestions s = suggestions;
+
+        if (s == null) {
+            return result;
+        }
+
+        String folded = foldPrefix (prefix);
+        int[] matches;
+
+        if (k <= PRECOMPUTED && folded.length () <= PRECOMPUTED_PREFIX_LENGTH) {
+            matches = s.top.get (folded);
+
+            if (matches == null) {
+                matches = new int[0];
+            }
+        } else {
+            int start = lowerBound (s, folded);
+            int end = s.headings.length;
+
+            if (folded.length () > 0) {
+                char last = folded.charAt (folded.length () - 1);
+                end = lowerBound (s, folded.substring (0, folded.length () - 1) +
+                                  (char) (last + 1));
+            }
+
+            matches = top (s, start, end, k);
+        }
+
+        for (int i = 0; i < matches.length && i < k; i++) {
+            NamedList<Object> suggestion = new SimpleOrderedMap<Object> ();
+
+            suggestion.add ("heading", s.headings[matches[i]]);
+            suggestion.add ("count", s.counts[matches[i]]);
+
+            result.add (suggestion);
+        }
+
+        return result;
+    }
+}
+
+
+
+/*
+ * A rolling sample of recent browse requests, used to pick the requests
+ * worth replaying against new versions of our indexes.
+ */
+class RecentRequests
+{
+    private AtomicReferenceArray<BrowseQuery> recent;
+    private AtomicInteger next = new AtomicInteger ();
+
+
+    public RecentRequests (int size)
+    {
+        recent = new AtomicReferenceArray<BrowseQuery> (size);
+    }
+
+
+    public void add (BrowseQuery request)
+    {
+        int slot = ((next.getAndIncrement () & Integer.MAX_VALUE) %
+                    recent.length ());
+
+        recent.set (slot, request);
+    }
+
+
+    // The 'n' most common requests in the sample for a given source (or for
+    // all sources if 'source' is null).
+    public List<BrowseQuery> top (int n, String source)
+    {
+        final Map<BrowseQuery,Integer> counts = new HashMap<BrowseQuery,Integer> ();
+
+        for (int i = 0; i < recent.length (); i++) {
+            BrowseQuery r = recent.get (i);
+
+            if (r != null && (source == null || r.source.equals (source))) {
+                Integer count = counts.get (r);
+                counts.put (r, (count == null) ? 1 : count + 1);
+            }
+        }
+
+        List<BrowseQuery> result = new ArrayList<BrowseQuery> (counts.keySet ());
+
+        Collections.sort (result, new Comparator<BrowseQuery> () {
+                public int compare (BrowseQuery a, BrowseQuery b)
+                {
+                    return counts.get (b) - counts.get (a);
+                }
+            });
+
+        return result.subList (0, Math.min (n, result.size ()));
+    }
+}
+
+
+
+class BrowseSource
+{
+    public String DBpath;
+    public String field;
+    public String dropChars;
+    public String type;
+
+    // For federated sources: the sources being merged
+    public String[] members;
+
+    // If set, the Solr core whose bib index this source counts against
+    public String coreName;
+
+    // Set if the source offers suggestions
+    public HeadingSuggester suggester;
+
+    // The class that built the headings DB's sort keys (null for the
+    // NORMALISER environment variable's, or the default)
+    public String normaliser;
+
+    public SourceMetrics metrics = new SourceMetrics ();
+
+    // Limits how many requests can browse this source at once (null for no
+    // limit)
+    public Semaphore permits;
+
+    public HeadingsDB headingsDB;
+    public AuthDB authDB;
+
+
+    public BrowseSource (String DBpath,
+                         String field,
+                         String dropChars,
+                         String type)
+    {
+        this.DBpath = DBpath;
+        this.field = field;
+        this.dropChars = dropChars;
+        this.type = (type != null) ? type : "sqlite";
+    }
+
+
+    public HeadingsDB openHeadingsDB (HeadingsWarmer warmer) throws Exception
+    {
+        if (type.equals ("terms")) {
+            return new TermsHeadingsDB (field);
+        } else if (type.equals ("federated")) {
+            return new FederatedHeadingsDB ();
+        } else {
+            SQLiteHeadingsDB db = new SQLiteHeadingsDB
+                (DBpath,
+                 (normaliser != null) ?
+                 Normaliser.getInstance (normaliser) :
+                 Normaliser.getInstance ());
+
+            if (warmer != null) {
+                db.setWarmer (warmer);
+            }
+
+            return db;
+        }
+    }
+}
+
+
+
+public class BrowseRequestHandler extends RequestHandlerBase
+    implements SolrCoreAware
+{
+    private String authPath = null;
+    private String bibPath = null;
+
+    private Map<String,BrowseSource> sources = new HashMap<String,BrowseSource> ();
+
+    private BrowseCache cache = null;
+
+    private RecentRequests recentRequests = null;
+    private int warmCount = 0;
+    private int maxIds = -1;
+    private int maxRows = 0;
+    private int timeAllowed = 0;
+
+    // Skip indexes for recently used filters, keyed on source, filter and
+    // index versions
+    private static final int MAX_FILTER_SKIP_INDEXES = 64;
+    private Map<String, FilterSkipIndex> filterSkipIndexes =
+        Collections.synchronizedMap (new LinkedHashMap<String, FilterSkipIndex> (16, 0.75f, true) {
+                protected boolean removeEldestEntry (Map.Entry<String, FilterSkipIndex> eldest)
+                {
+                    return size () > MAX_FILTER_SKIP_INDEXES;
+                }
+            });
+
+    private ExecutorService prefetcher = null;
+    private ExecutorService batchPool = null;
+    private SolrCore core;
+
+    private SolrParams solrParams;
+
+    // Trace one in every 'traceEvery' requests (never if it's zero)
+    private int traceEvery = 0;
+    private AtomicLong requestCount = new AtomicLong ();
+
+    // Requests slower than this go to the slow log
+    private long slowRequestMillis = 0;
+    private static final Logger slowLog =
+        Logger.getLogger (BrowseRequestHandler.class.getName () + ".slow");
+
+
+    private String asAbsFile (String s)
+    {
+        File f = new File (s);
+
+        if (!f.isAbsolute ()) {
+            return (new File (new File (System.getenv ("BROWSE_HOME")),
+                             f.getPath ()).getPath ());
+        } else {
+            return f.getPath ();
+        }
+    }
+
+
+    public void init (NamedList args)
+    {
+        super.init (args);
+
+        solrParams = SolrParams.toSolrParams (args);
+
+        authPath = asAbsFile (solrParams.get ("authIndexPath"));
+        bibPath = asAbsFile (solrParams.get ("bibIndexPath"));
+
+        sources = new HashMap<String, BrowseSource> ();
+
+        for (String source : Arrays.asList (solrParams.get
+                                            ("sources").split (","))) {
+            @SuppressWarnings("unchecked")
+            NamedList<String> entry = (NamedList<String>)args.get (source);
+
+            BrowseSource browseSource = new BrowseSource (entry.get ("DBpath"),
+                                                          entry.get ("field"),
+                                                          entry.get ("dropChars"),
+                                                          entry.get ("type"));
+
+            browseSource.coreName = entry.get ("core");
+            browseSource.normaliser = entry.get ("normaliser");
+
+            if ("true".equals (entry.get ("suggest"))) {
+                browseSource.suggester = new HeadingSuggester ();
+            }
+
+            if (entry.get ("members") != null) {
+                browseSource.members = entry.get ("members").split (",");
+            }
+
+            int maxConcurrent = solrParams.getInt ("maxConcurrent", 0);
+            if (entry.get ("maxConcurrent") != null) {
+                maxConcurrent = Integer.parseInt (entry.get ("maxConcurrent"));
+            }
+
+            if (maxConcurrent > 0) {
+                browseSource.permits = new Semaphore (maxConcurrent);
+            }
+
+            sources.put (source, browseSource);
+        }
+
+        for (Map.Entry<String,BrowseSource> entry : sources.entrySet ()) {
+            BrowseSource source = entry.getValue ();
+
+            if (!source.type.equals ("federated")) {
+                continue;
+            }
+
+            if (source.members == null) {
+                throw new RuntimeException ("Federated source " + entry.getKey () +
+                                            " needs a list of members");
+            }
+
+            for (String member : source.members) {
+                if (!sources.containsKey (member) ||
+                    sources.get (member).type.equals ("federated")) {
+                    throw new RuntimeException ("Federated source " + entry.getKey () +
+                                                " has an invalid member: " + member);
+                }
+
+                // Members' keys are compared with each other
+                String normaliser = sources.get (member).normaliser;
+                String first = sources.get (source.members[0]).normaliser;
+
+                if ((normaliser == null) ? (first != null) : !normaliser.equals (first)) {
+                    throw new RuntimeException ("Members of federated source " +
+                                                entry.getKey () +
+                                                " must share a normaliser");
+                }
+            }
+        }
+
+        int cacheSizeMB = solrParams.getInt ("cacheSizeMB", 0);
+        if (cacheSizeMB > 0) {
+            cache = new BrowseCache (cacheSizeMB * 1024L * 1024L);
+        }
+
+        warmCount = solrParams.getInt ("warmCount", 0);
+        if (warmCount > 0) {
+            recentRequests = new RecentRequests (solrParams.getInt ("warmSampleSize",
+                                                                    1000));
+        }
+
+        batchPool = newBatchPool (solrParams.getInt ("batchThreads", 4));
+
+        maxIds = solrParams.getInt ("maxIds", -1);
+        maxRows = solrParams.getInt ("maxRows", 0);
+        timeAllowed = solrParams.getInt ("timeAllowed", 0);
+
+        double traceSampleRate = solrParams.getDouble ("traceSampleRate", 0);
+        if (traceSampleRate > 0) {
+            traceEvery = (int) Math.max (1, Math.round (1 / traceSampleRate));
+        }
+
+        slowRequestMillis = solrParams.getLong ("slowRequestMillis", 0);
+
+        int prefetchThreads = solrParams.getInt ("prefetchThreads", 0);
+        if (prefetchThreads > 0) {
+            if (cache == null) {
+                Log.info ("Prefetching needs a cache to prefetch into.  " +
+                          "Set cacheSizeMB to use it.");
+            } else {
+                prefetcher = newPrefetcher (prefetchThreads);
+            }
+        }
+    }
+
+
+    private ExecutorService newBatchPool (int threads)
+    {
+        return Executors.newFixedThreadPool (threads, new ThreadFactory () {
+                public Thread newThread (Runnable r)
+                {
+                    Thread t = new Thread (r, "Browse batch worker");
+                    t.setDaemon (true);
+                    return t;
+                }
+            });
+    }
+
+
+    /*
+     * Prefetching is strictly best effort: its threads run at minimum
+     * priority, and once a small queue of pending work fills up, new
+     * prefetches are simply dropped.
+     */
+    private ExecutorService newPrefetcher (int threads)
+    {
+        return new ThreadPoolExecutor
+            (threads, threads, 60, TimeUnit.SECONDS,
+             new ArrayBlockingQueue<Runnable> (threads * 4),
+             new ThreadFactory () {
+                 public Thread newThread (Runnable r)
+                 {
+                     Thread t = new Thread (r, "Browse prefetcher");
+                     t.setDaemon (true);
+                     t.setPriority (Thread.MIN_PRIORITY);
+                     return t;
+                 }
+             },
+             new ThreadPoolExecutor.DiscardPolicy ());
+    }
+
+
+    /*
+     * Load the pages either side of the one we just served into the cache.
+     * These run against whatever searcher is current when they get their
+     * turn, which will usually be the one the user's next request gets.
+     */
+    private void prefetchAdjacent (BrowseQuery query)
+    {
+        if (query.rows <= 0 || core == null) {
+            return;
+        }
+
+        BrowseQuery background = query.withoutDeadline ();
+
+        for (final BrowseQuery adjacent :
+                 new BrowseQuery[] {background.withOffset (query.offset + query.rows),
+                                    background.withOffset (query.offset - query.rows)}) {
+            prefetcher.execute (new Runnable () {
+                    public void run ()
+                    {
+                        RefCounted<SolrIndexSearcher> searcher = core.getSearcher ();
+
+                        try {
+                            browse (adjacent, searcher.get (), true);
+                        } catch (Exception e) {
+                            Log.info ("Prefetch failed: " + e);
+                        } finally {
+                            searcher.decref ();
+                        }
+                    }
+                });
+        }
+    }
+
+
+    public void inform (SolrCore core)
+    {
+        this.core = core;
+
+        SolrEventListener listener = new SolrEventListener () {
+                public void init (NamedList args)
+                {
+                }
+
+
+                public void postCommit ()
+                {
+                }
+
+
+                public void newSearcher (SolrIndexSearcher newSearcher,
+                                         SolrIndexSearcher currentSearcher)
+                {
+                    if (currentSearcher == null) {
+                        openSources (newSearcher);
+                    } else {
+                        warmSearcher (newSearcher);
+                    }
+                }
+            };
+
+        core.registerFirstSearcherListener (listener);
+        core.registerNewSearcherListener (listener);
+    }
+
+
+    // Get every source's indexes open before the first request arrives.
+    private void openSources (IndexSearcher searcher)
+    {
+        for (Map.Entry<String,BrowseSource> entry : sources.entrySet ()) {
+            try {
+                Browse browse = openBrowse (entry.getKey (), entry.getValue (),
+                                            searcher, null);
+                try {
+                    browse.reopenDatabasesIfUpdated ();
+                    checkSuggestions (entry.getKey (), entry.getValue (), browse);
+                } finally {
+                    browse.queryFinished ();
+                }
+            } catch (Exception e) {
+                Log.info ("Failed to open browse source " + entry.getKey () +
+                          ": " + e);
+            }
+        }
+    }
+
+
+    // Replay our most common recent requests against a new searcher.  If
+    // we're caching, this also fills the cache for the new searcher.
+    private void warmSearcher (IndexSearcher searcher)
+    {
+        if (recentRequests == null) {
+            return;
+        }
+
+        List<BrowseQuery> requests = recentRequests.top (warmCount, null);
+
+        for (BrowseQuery r : requests) {
+            try {
+                browse (r, searcher, false);
+            } catch (Exception e) {
+                Log.info ("Failed to warm browse source " + r.source + ": " + e);
+            }
+        }
+
+        Log.info ("Warmed new searcher with " + requests.size () + " requests");
+    }
+
+
+    private HeadingsWarmer headingsWarmer (final String sourceName)
+    {
+        if (recentRequests == null) {
+            return null;
+        }
+
+        return new HeadingsWarmer () {
+            public void warm (HeadingsDB db) throws Exception
+            {
+                for (BrowseQuery r : recentRequests.top (warmCount, sourceName)) {
+                    HeadingsDB ordered;
+
+                    try {
+                        ordered = db.withOrdering (r.order);
+                    } catch (Exception e) {
+                        // The new version doesn't have this ordering
+                        continue;
+                    }
+
+                    int rowid = (r.from != null) ? ordered.getHeadingStart (r.from) : r.rowid;
+                    ordered.getHeadings (Math.max (0, rowid + r.offset), r.rows);
+                }
+            }
+        };
+    }
+
+
+    private Browse openBrowse (String sourceName, BrowseSource source,
+                               IndexSearcher searcher, List<Query> filters)
+        throws Exception
+    {
+        return openBrowse (sourceName, source, searcher, filters, null);
+    }
+
+
+    private Browse openBrowse (String sourceName, BrowseSource source,
+                               IndexSearcher searcher, List<Query> filters,
+                               String order)
+        throws Exception
+    {
+        openSource (sourceName, source);
+
+        // Check the ordering makes sense for this source before opening
+        // anything else
+        HeadingsDB headingsDB = source.headingsDB.withOrdering (order);
+
+        if (!source.type.equals ("federated")) {
+            BibDB bibDB = openBibDB (source, searcher, filters);
+
+            return new Browse (headingsDB.withSearcher (bibDB.searcher ()),
+                               source.authDB,
+                               bibDB,
+                               source.metrics);
+        }
+
+        HeadingsDB[] headings = new HeadingsDB[source.members.length];
+        BibDB[] bibs = new BibDB[source.members.length];
+
+        try {
+            for (int i = 0; i < source.members.length; i++) {
+                BrowseSource member = sources.get (source.members[i]);
+
+                openSource (source.members[i], member);
+                bibs[i] = openBibDB (member, searcher, filters);
+                headings[i] = member.headingsDB.withSearcher (bibs[i].searcher ());
+            }
+        } catch (Exception e) {
+            for (BibDB bib : bibs) {
+                if (bib != null) {
+                    bib.release ();
+                }
+            }
+
+            throw e;
+        }
+
+        return new Browse (((FederatedHeadingsDB) source.headingsDB).withMembers (headings),
+                           source.authDB,
+                           new FederatedBibDB (bibs),
+                           source.metrics);
+    }
+
+
+    private synchronized void openSource (String sourceName,
+                                          BrowseSource source)
+        throws Exception
+    {
+        if (source.headingsDB == null) {
+            source.headingsDB = source.openHeadingsDB (headingsWarmer (sourceName));
+            source.authDB = new AuthDB
+                (authPath,
+                 solrParams.get ("preferredHeadingField"),
+                 solrParams.get ("useInsteadHeadingField"),
+                 solrParams.get ("seeAlsoHeadingField"),
+                 solrParams.get ("scopeNoteField"));
+
+            if (recentRequests != null) {
+                source.authDB.enableWarming (solrParams.getInt ("warmSampleSize",
+                                                                1000));
+            }
+
+            if (solrParams.getBool ("authSnapshot", false)) {
+                source.authDB.enableSnapshot ();
+            }
+        }
+    }
+
+
+    /*
+     * The bib index a source counts against: the request's, unless the source
+     * names another core.  Filters are applied through the searcher's filter
+     * cache.
+     */
+    private BibDB openBibDB (BrowseSource source, IndexSearcher searcher,
+                             List<Query> filters)
+        throws Exception
+    {
+        if (source.coreName == null) {
+            return new BibDB (searcher, source.field,
+                              filterDocs (searcher, filters));
+        }
+
+        if (core == null) {
+            throw new Exception ("Can't find core " + source.coreName +
+                                 " before the handler's core has loaded");
+        }
+
+        final SolrCore other = core.getCoreDescriptor ().getCoreContainer ()
+            .getCore (source.coreName);
+
+        if (other == null) {
+            throw new Exception ("No such core: " + source.coreName);
+        }
+
+        final RefCounted<SolrIndexSearcher> otherSearcher;
+
+        try {
+            otherSearcher = other.getSearcher ();
+        } catch (RuntimeException e) {
+            other.close ();
+            throw e;
+        }
+
+        try {
+            return new BibDB (otherSearcher.get (), source.field,
+                              filterDocs (otherSearcher.get (), filters)) {
+                public void release ()
+                {
+                    otherSearcher.decref ();
+                    other.close ();
+                }
+            };
+        } catch (Exception e) {
+            otherSearcher.decref ();
+            other.close ();
+            throw e;
+        }
+    }
+
+
+    private DocSet filterDocs (IndexSearcher searcher, List<Query> filters)
+        throws Exception
+    {
+        if (filters == null) {
+            return null;
+        }
+
+        if (!(searcher instanceof SolrIndexSearcher)) {
+            throw new Exception ("Filtered browsing needs a Solr searcher");
+        }
+
+        return ((SolrIndexSearcher) searcher).getDocSet (filters);
+    }
+
+
+    private int asInt (String s)
+    {
+        int value;
+        try {
+            return new Integer (s).intValue ();
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+
+    private boolean wantsTiming (SolrParams p)
+    {
+        String[] debug = p.getParams ("debug");
+
+        return (debug != null && Arrays.asList (debug).contains ("timing"));
+    }
+
+
+    private boolean sampled ()
+    {
+        return (traceEvery > 0 &&
+                requestCount.incrementAndGet () % traceEvery == 0);
+    }
+
+
+    @Override
+    public void handleRequestBody (org.apache.solr.request.SolrQueryRequest req,
+                                   org.apache.solr.response.SolrQueryResponse rsp)
+        throws Exception
+    {
+        SolrParams p = req.getParams ();
+        boolean timing = wantsTiming (p);
+
+        Trace.Span trace = (timing || sampled ()) ? Trace.start ("request") : null;
+        long start = System.nanoTime ();
+
+        try {
+            handleRequest (req, rsp);
+        } finally {
+            Trace.finish (trace);
+
+            long millis = (System.nanoTime () - start) / 1000000;
+
+            if (slowRequestMillis > 0 && millis >= slowRequestMillis) {
+                slowLog.warning ("Slow browse request (" + millis + " ms): " + p +
+                                 ((trace != null) ? "\n" + trace : ""));
+            }
+        }
+
+        if (timing) {
+            rsp.add ("trace", trace.asNamedList ());
+        }
+    }
+
+
+    private void handleRequest (org.apache.solr.request.SolrQueryRequest req,
+                                org.apache.solr.response.SolrQueryResponse rsp)
+        throws Exception
+    {
+        SolrParams p = req.getParams ();
+
+        if (p.get ("reopen") != null) {
+            LuceneDB.reopenAllIfUpdated ();
+            return;
+        }
+
+
+        if (p.get ("suggest") != null) {
+            rsp.add ("Suggest", suggest (p, req.getSearcher ()));
+            return;
+        }
+
+        if (p.get ("export") != null) {
+            rsp.add ("Export", export (req, p.get ("source")));
+            return;
+        }
+
+        String[] sourceNames = p.getParams ("source");
+
+        if (sourceNames != null && sourceNames.length > 1) {
+            rsp.add ("Browses", browseBatch (req, sourceNames, req.getSearcher ()));
+            return;
+        }
+
+        BrowseQuery query = parseQuery (req, p.get ("source"));
+
+        rsp.add ("Browse", browse (query, req.getSearcher ()));
+    }
+
+
+    /*
+     * Parameters can be given for all sources at once or, for batch
+     * requests, just for one source using Solr's per-field syntax (like
+     * "f.subjects.from=boats").
+     */
+    private BrowseQuery parseQuery (org.apache.solr.request.SolrQueryRequest req,
+                                    String sourceName)
+        throws Exception
+    {
+        SolrParams p = req.getParams ();
+
+        if (sourceName == null || !sources.containsKey (sourceName)) {
+            throw new Exception ("Need a (valid) source parameter.");
+        }
+
+        BrowseQuery query = new BrowseQuery (sourceName);
+
+        query.from = p.getFieldParam (sourceName, "from");
+
+        if (p.getFieldParam (sourceName, "rowid") != null) {
+            query.rowid = asInt (p.getFieldParam (sourceName, "rowid"));
+        }
+
+        query.rows = asInt (p.getFieldParam (sourceName, "rows"));
+
+        query.offset = ((p.getFieldParam (sourceName, "offset") != null) ?
+                        asInt (p.getFieldParam (sourceName, "offset")) : 0);
+
+        if (p.getFieldParam (sourceName, "before") != null ||
+            p.getFieldParam (sourceName, "after") != null) {
+            int before = asInt (p.getFieldParam (sourceName, "before"));
+            int after = asInt (p.getFieldParam (sourceName, "after"));
+
+            if (before < 0 || after < 0) {
+                throw new Exception ("Invalid value for parameter: before/after");
+            }
+
+            query.around = true;
+            query.offset = -before;
+            query.rows = before + after;
+        }
+
+        if (query.rows < 0) {
+            throw new Exception ("Invalid value for parameter: rows");
+        }
+
+        if (maxRows > 0 && query.rows > maxRows) {
+            if (query.around) {
+                // Keep as much of each side as we can, but no more than half
+                // of the page for the headings before unless that's all
+                // there is.
+                int before = -query.offset;
+                int after = query.rows - before;
+
+                query.offset = -Math.min (before,
+                                          Math.max (maxRows / 2, maxRows - after));
+            }
+
+            query.rows = maxRows;
+        }
+
+        int allowed = ((p.getFieldParam (sourceName, "timeAllowed") != null) ?
+                       asInt (p.getFieldParam (sourceName, "timeAllowed")) : 0);
+
+        if (timeAllowed > 0 && (allowed <= 0 || allowed > timeAllowed)) {
+            allowed = timeAllowed;
+        }
+
+        if (allowed > 0) {
+            query.deadline = req.getStartTime () + allowed;
+        }
+
+        String fl = p.getFieldParam (sourceName, "fl");
+        if (fl != null && !fl.trim ().equals ("*")) {
+            query.fields = new TreeSet<String> ();
+
+            for (String field : fl.trim ().split ("[, ]+")) {
+                if (field.equals ("heading")) {
+                    continue;
+                }
+
+                if (!BrowseItem.FIELDS.contains (field)) {
+                    throw new Exception ("Invalid value for parameter: fl " +
+                                         "(must be a list of: heading, " +
+                                         BrowseItem.FIELDS + ")");
+                }
+
+                query.fields.add (field);
+            }
+        }
+
+        if (p.getFieldParam (sourceName, "idsOffset") != null) {
+            query.idsOffset = asInt (p.getFieldParam (sourceName, "idsOffset"));
+        }
+
+        if (p.getFieldParam (sourceName, "idsRows") != null) {
+            query.idsRows = asInt (p.getFieldParam (sourceName, "idsRows"));
+
+            if (query.idsRows < 0) {
+                throw new Exception ("Invalid value for parameter: idsRows");
+            }
+        }
+
+        if (query.idsOffset < 0) {
+            throw new Exception ("Invalid value for parameter: idsOffset");
+        }
+
+        if (maxIds >= 0 && (query.idsRows < 0 || query.idsRows > maxIds)) {
+            query.idsRows = maxIds;
+        }
+
+        String idsFormat = p.getFieldParam (sourceName, "idsFormat");
+        if (idsFormat != null &&
+            !idsFormat.equals ("ids") && !idsFormat.equals ("docids")) {
+            throw new Exception ("Invalid value for parameter: idsFormat " +
+                                 "(must be 'ids' or 'docids')");
+        }
+
+        query.docids = "docids".equals (idsFormat);
+
+        String order = p.getFieldParam (sourceName, "order");
+        if (order != null && !order.trim ().equals ("")) {
+            query.order = order.trim ();
+        }
+
+        String[] fqs = p.getFieldParams (sourceName, "fq");
+        if (fqs != null) {
+            for (String fq : fqs) {
+                if (fq == null || fq.trim ().equals ("")) {
+                    continue;
+                }
+
+                if (query.fq == null) {
+                    query.fq = new ArrayList<String> ();
+                    query.filters = new ArrayList<Query> ();
+                }
+
+                query.fq.add (fq);
+                query.filters.add (QParser.getParser (fq, null, req).getQuery ());
+            }
+        }
+
+        return query;
+    }
+
+
+    /*
+     * Every heading of a source from 'from' up to (but not including) 'to',
+     * streamed to the response as it's written.  Nothing is cached and no
+     * BrowseList is built, so an export can cover the whole source.
+     */
+    private Export export (org.apache.solr.request.SolrQueryRequest req,
+                           String sourceName)
+        throws Exception
+    {
+        BrowseQuery query = parseQuery (req, sourceName);
+        BrowseSource source = sources.get (sourceName);
+
+        if (!source.type.equals ("sqlite")) {
+            throw new Exception ("Only headings DB sources can be exported: " +
+                                 sourceName);
+        }
+
+        if (query.fields != null) {
+            for (String field : query.fields) {
+                if (!field.equals ("count")) {
+                    throw new Exception ("Invalid value for parameter: fl " +
+                                         "(exports can only include: heading, count)");
+                }
+            }
+        }
+
+        for (String param : new String[] {"rowid", "offset", "rows",
+                                          "before", "after"}) {
+            if (req.getParams ().getFieldParam (sourceName, param) != null) {
+                throw new SolrException (SolrException.ErrorCode.BAD_REQUEST,
+                                         "Exports don't take parameter: " + param +
+                                         " (use from and to)");
+            }
+        }
+
+        boolean counts = (query.fields != null && query.fields.contains ("count"));
+        String to = req.getParams ().getFieldParam (sourceName, "to");
+        if (to != null && to.trim ().equals ("")) {
+            to = null;
+        }
+
+        openSource (sourceName, source);
+
+        HeadingCursor cursor = ((SQLiteHeadingsDB) source.headingsDB).export
+            (query.order, query.from, to);
+
+        BibDB bibDB = null;
+
+        if (counts || query.filters != null) {
+            try {
+                bibDB = openBibDB (source, req.getSearcher (), query.filters);
+            } catch (Exception e) {
+                cursor.close ();
+                throw e;
+            }
+        }
+
+        Export export = new Export (cursor, bibDB, counts,
+                                    (query.filters != null));
+
+        // The response writer might not read to the end (if the client goes
+        // away, say), so make sure everything's released once the request is
+        // over.
+        SolrRequestInfo info = SolrRequestInfo.getRequestInfo ();
+
+        if (info != null) {
+            info.addCloseHook (export);
+        }
+
+        return export;
+    }
+
+
+    private List<NamedList<Object>> suggest (SolrParams p,
+                                             IndexSearcher searcher)
+        throws Exception
+    {
+        String sourceName = p.get ("source");
+        BrowseSource source = (sourceName != null) ? sources.get (sourceName) : null;
+
+        if (source == null) {
+            throw new Exception ("Need a (valid) source parameter.");
+        }
+
+        if (source.suggester == null) {
+            throw new Exception ("Suggestions aren't enabled for source: " +
+                                 sourceName);
+        }
+
+        int rows = p.getInt ("rows", 10);
+
+        if (rows < 0) {
+            throw new Exception ("Invalid value for parameter: rows");
+        }
+
+        Browse browse = openBrowse (sourceName, source, searcher, null);
+
+        try {
+            browse.reopenDatabasesIfUpdated ();
+            checkSuggestions (sourceName, source, browse);
+        } finally {
+            browse.queryFinished ();
+        }
+
+        return source.suggester.suggest (p.get ("suggest"), rows);
+    }
+
+
+    // Start rebuilding a source's suggestions if its headings have changed.
+    private void checkSuggestions (final String sourceName,
+                                   final BrowseSource source,
+                                   Browse browse)
+    {
+        if (source.suggester == null ||
+            source.suggester.version () == browse.headingsVersion () ||
+            core == null ||
+            !source.suggester.startRebuild ()) {
+            return;
+        }
+
+        Background.submit (new Runnable () {
+                public void run ()
+                {
+                    try {
+                        buildSuggestions (sourceName, source);
+                    } catch (Exception e) {
+                        Log.info ("Failed to build suggestions for " +
+                                  sourceName + ": " + e);
+                    } finally {
+                        source.suggester.rebuildFinished ();
+                    }
+                }
+            });
+    }
+
+
+    /*
+     * Read every heading of a source (and its count) into its suggester.  We
+     * read a chunk at a time, so the headings DB isn't held open for the
+     * whole build.  If it changes part way through, we give up and leave it
+     * to the next request to start again.
+     */
+    private void buildSuggestions (String sourceName, BrowseSource source)
+        throws Exception
+    {
+        List<String> headings = new ArrayList<String> ();
+        int[] counts = new int[1024];
+        long version = 0;
+        boolean started = false;
+
+        while (true) {
+            RefCounted<SolrIndexSearcher> searcher = core.getSearcher ();
+
+            try {
+                Browse browse = openBrowse (sourceName, source, searcher.get (),
+                                            null).unmetered ();
+
+                try {
+                    browse.reopenDatabasesIfUpdated ();
+
+                    if (!started) {
+                        version = browse.headingsVersion ();
+                        started = true;
+                    } else if (version != browse.headingsVersion ()) {
+                        Log.info ("Headings for " + sourceName + " changed " +
+                                  "while building suggestions");
+                        return;
+                    }
+
+                    List<String> chunk = browse.getHeadings (headings.size () + 1,
+                                                             1000);
+
+                    if (chunk.isEmpty ()) {
+                        break;
+                    }
+
+                    for (String heading : chunk) {
+                        if (headings.size () == counts.length) {
+                            counts = Arrays.copyOf (counts, counts.length * 2);
+                        }
+
+                        counts[headings.size ()] = browse.recordCount (heading);
+                        headings.add (heading);
+                    }
+                } finally {
+                    browse.queryFinished ();
+                }
+            } finally {
+                searcher.decref ();
+            }
+        }
+
+        source.suggester.load (version, headings, counts);
+
+        Log.info ("Loaded " + headings.size () + " suggestions for " +
+                  sourceName);
+    }
+
+
+    private Object browse (BrowseQuery query, IndexSearcher searcher)
+        throws Exception
+    {
+        BrowseSource source = sources.get (query.source);
+
+        // Turn requests away straight away rather than letting them queue up
+        // behind a source that's struggling.  Only requests from users count
+        // towards the limit: prefetching and warming just get on with it.
+        if (source.permits != null && !source.permits.tryAcquire ()) {
+            source.metrics.rejected.incrementAndGet ();
+            throw new SolrException (SolrException.ErrorCode.SERVICE_UNAVAILABLE,
+                                     "Too many concurrent requests for source: " +
+                                     query.source);
+        }
+
+        Object result;
+
+        try {
+            if (recentRequests != null) {
+                recentRequests.add (query.withoutDeadline ());
+            }
+
+            result = browse (query, searcher, false);
+        } finally {
+            if (source.permits != null) {
+                source.permits.release ();
+            }
+        }
+
+        if (prefetcher != null) {
+            prefetchAdjacent (query);
+        }
+
+        return result;
+    }
+
+
+    /*
+     * Browse several sources at once.  All but the first run on the batch
+     * pool while this thread does the first, and they all share the
+     * request's searcher.  Every source's parameters are checked before
+     * anything starts, so a bad one doesn't leave the others running.
+     */
+    private NamedList<Object> browseBatch (org.apache.solr.request.SolrQueryRequest req,
+                                           String[] sourceNames,
+                                           final IndexSearcher searcher)
+        throws Exception
+    {
+        List<BrowseQuery> queries = new ArrayList<BrowseQuery> ();
+
+        for (String sourceName : sourceNames) {
+            queries.add (parseQuery (req, sourceName));
+        }
+
+        List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>> ();
+
+        // The batch threads add their spans to this thread's trace
+        final Trace.Span trace = Trace.current ();
+
+        for (final BrowseQuery query : queries) {
+            FutureTask<Object> task = new FutureTask<Object> (new Callable<Object> () {
+                    public Object call () throws Exception
+                    {
+                        Trace.Span previous = Trace.resume (trace);
+
+                        try {
+                            return browse (query, searcher);
+                        } finally {
+                            Trace.resume (previous);
+                        }
+                    }
+                });
+
+            tasks.add (task);
+        }
+
+        try {
+            for (int i = 1; i < tasks.size (); i++) {
+                batchPool.execute (tasks.get (i));
+            }
+
+            tasks.get (0).run ();
+
+            // Wait for everything to finish (even if something failed) so
+            // that nothing is still using the searcher once the request is
+            // done.
+            NamedList<Object> browses = new SimpleOrderedMap<Object> ();
+            Exception failure = null;
+
+            for (int i = 0; i < sourceNames.length; i++) {
+                try {
+                    browses.add (sourceNames[i], tasks.get (i).get ());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = (e.getCause () instanceof Exception) ?
+                            (Exception) e.getCause () : e;
+                    }
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            return browses;
+        } finally {
+            // Only has work to do if we're leaving early (say, if the pool
+            // rejected a task or we were interrupted while waiting)
+            for (FutureTask<Object> task : tasks) {
+                task.cancel (false);
+            }
+        }
+    }
+
+
+    private Object browse (final BrowseQuery query, IndexSearcher searcher,
+                           boolean prefetching)
+        throws Exception
+    {
+        Trace.Span span = Trace.begin ("browse", query.source);
+
+        final Browse browse = openBrowse (query.source,
+                                          sources.get (query.source),
+                                          searcher,
+                                          query.filters,
+                                          query.order);
+
+        try {
+            Trace.Span reopen = Trace.begin ("reopen");
+            browse.reopenDatabasesIfUpdated ();
+            Trace.end (reopen);
+
+            final FilterSkipIndex skip =
+                (query.filters != null) ? filterSkipIndex (query, browse) : null;
+
+            if (cache != null) {
+                String key = BrowseCache.key (query.key (),
+                                              browse.headingsVersion (),
+                                              browse.authVersion (),
+                                              browse.bibVersion ());
+
+                Callable<BrowseCache.Entry> loader = new Callable<BrowseCache.Entry> () {
+                    public BrowseCache.Entry call () throws Exception
+                    {
+                        return browseList (browse, query, skip);
+                    }
+                };
+
+                if (prefetching) {
+                    cache.prefetch (key, loader);
+                    return null;
+                }
+
+                Trace.Span lookup = Trace.begin ("cache");
+
+                try {
+                    return cache.get (key, loader);
+                } finally {
+                    Trace.end (lookup);
+                }
+            } else {
+                return browseList (browse, query, skip).value;
+            }
+        } finally {
+            browse.queryFinished ();
+            Trace.end (span);
+        }
+    }
+
+
+    // The skip index for this query's source and filters against the current
+    // headings and bib index.
+    private FilterSkipIndex filterSkipIndex (BrowseQuery query, Browse browse)
+        throws Exception
+    {
+        String key = BrowseCache.key (query.source,
+                                      query.order,
+                                      BrowseCache.key (query.fq.toArray ()),
+                                      browse.headingsVersion (),
+                                      browse.bibVersion ());
+
+        synchronized (filterSkipIndexes) {
+            FilterSkipIndex skip = filterSkipIndexes.get (key);
+
+            if (skip == null) {
+                skip = new FilterSkipIndex (browse.headingCount ());
+                filterSkipIndexes.put (key, skip);
+            }
+
+            return skip;
+        }
+    }
+
+
+    private BrowseCache.Entry browseList (Browse browse, BrowseQuery query,
+                                          FilterSkipIndex skip)
+        throws Exception
+    {
+        int rowid = query.rowid;
+        int offset = query.offset;
+        int rows = query.rows;
+
+        if (query.from != null) {
+            rowid = (browse.getId (query.from));
+        }
+
+        if (query.around && skip == null && rowid + offset < 1) {
+            // Fewer headings before our match than were asked for.  Show
+            // what there is rather than padding out the end of the page.
+            rows -= (1 - (rowid + offset));
+            offset = 1 - rowid;
+        }
+
+        BrowseList list = (skip != null) ?
+            browse.getFilteredList (rowid, offset, rows, query, skip) :
+            browse.getList (rowid, offset, rows, query);
+
+        NamedList<Object> result = new SimpleOrderedMap<Object> ();
+
+        result.add ("totalCount", list.totalCount);
+        result.add ("startRow", rowid);
+        result.add ("offset", list.offset);
+
+        if (query.around) {
+            // Where the heading we looked up sits in 'items'
+            result.add ("matchIndex", -list.offset);
+        }
+
+        if (list.partial) {
+            result.add ("partial", true);
+        }
+
+        result.add ("items", list.asNamedLists (query.fields));
+
+        BrowseCache.Entry entry = new BrowseCache.Entry (result,
+                                                         list.sizeEstimate ());
+
+        entry.cacheable = !list.partial;
+
+        return entry;
+    }
+
+
+    //////////////////////// SolrInfoMBeans methods //////////////////////
+
+    @Override
+    public NamedList getStatistics () {
+        NamedList stats = super.getStatistics ();
+
+        if (cache != null) {
+            cache.addStatistics (stats);
+        }
+
+        for (Map.Entry<String,BrowseSource> entry : sources.entrySet ()) {
+            entry.getValue ().metrics.addStatistics (entry.getKey (), stats);
+        }
+
+        return stats;
+    }
+
 
     public String getVersion () {
         return "$Revision: 0.1 $";
@@ -10,6 +10,11 @@ import java.sql.*;
 // Note that this version is coming from Solr!
 import org.apache.commons.codec.binary.Base64;
 
+import au.gov.nla.util.BrowseEntry;
+import au.gov.nla.util.KeyBlock;
+import au.gov.nla.util.Normaliser;
+import au.gov.nla.util.Utils;
+
 
 public class CreateBrowseSQLite
 {
@@ -115,9 +120,596 @@ public class CreateBrowseSQLite
         stat.executeUpdate ("create table headings " +
                             "as select * from all_headings order by key;");
 
-        stat.executeUpdate ("create index keyindex on headings (key);");
+        // Key blocks replace the keyindex, so don't build one only to drop it.
+        if (keyBlockSize () == 0) {
+            stat.executeUpdate ("create index keyindex on headings (key);");
+        }
+
+        stat.close ();
+    }
+
+
+    /*
+     * Read the next line from a sorted headings file, checking that the file
+     * really is in the order our merge expects.
+     */
+    private String readSortedLine (BufferedReader br, String previous,
+                                   String file)
+        throws IOException
+    {
+        String line = readCRLFLine (br);
+
+        if (line != null && previous != null && line.compareTo (previous) < 0) {
+            throw new IOException (file + " isn't sorted.  Both headings " +
+                                   "files need to be sorted with LC_ALL=C " +
+                                   "before they can be compared.");
+        }
+
+        return line;
+    }
 
+
+    private BrowseEntry parseLine (String line)
+    {
+        int sep = line.indexOf (KEY_SEPARATOR.charAt (0));
+
+        if (sep < 0) {
+            return null;
+        }
+
+        return new BrowseEntry (Base64.decodeBase64 (line.substring (0, sep).getBytes()),
+                                line.substring (sep + 1));
+    }
+
+
+    private void addEntry (PreparedStatement prep, byte[] key, String heading)
+        throws SQLException
+    {
+        prep.setBytes (1, key);
+        prep.setString (2, heading);
+        prep.addBatch ();
+    }
+
+
+    private BrowseEntry nextEntry (ResultSet rs) throws SQLException
+    {
+        if (!rs.next ()) {
+            return null;
+        }
+
+        return new BrowseEntry (rs.getBytes ("key"), rs.getString ("heading"));
+    }
+
+
+    /*
+     * Walk the previous and current headings files in step, writing the
+     * lines that only appear in one or the other to the delta_added and
+     * delta_removed tables.  The files are in text order rather than key
+     * order, so SQLite does the re-sorting for us (on disk).
+     */
+    private int[] diffHeadings (String previousFile, String currentFile)
+        throws Exception
+    {
+        Statement stat = outputDB.createStatement ();
+        stat.executeUpdate ("drop table if exists delta_added;");
+        stat.executeUpdate ("drop table if exists delta_removed;");
+        stat.executeUpdate ("create table delta_added (key, heading);");
+        stat.executeUpdate ("create table delta_removed (key, heading);");
         stat.close ();
+
+        outputDB.setAutoCommit (false);
+
+        PreparedStatement added = outputDB.prepareStatement (
+            "insert into delta_added (key, heading) values (?, ?)");
+        PreparedStatement removed = outputDB.prepareStatement (
+            "insert into delta_removed (key, heading) values (?, ?)");
+
+        BufferedReader prev = new BufferedReader (new FileReader (previousFile));
+        BufferedReader curr = new BufferedReader (new FileReader (currentFile));
+
+        String p = readSortedLine (prev, null, previousFile);
+        String c = readSortedLine (curr, null, currentFile);
+
+        int[] counts = new int[2];
+
+        while (p != null || c != null) {
+            int cmp;
+
+            if (p == null) {
+                cmp = 1;
+            } else if (c == null) {
+                cmp = -1;
+            } else {
+                cmp = p.compareTo (c);
+            }
+
+            if (cmp == 0) {
+                p = readSortedLine (prev, p, previousFile);
+                c = readSortedLine (curr, c, currentFile);
+                continue;
+            }
+
+            if (cmp < 0) {
+                BrowseEntry entry = parseLine (p);
+                if (entry != null) {
+                    addEntry (removed, entry.key, entry.value);
+                    counts[1]++;
+                }
+                p = readSortedLine (prev, p, previousFile);
+            } else {
+                BrowseEntry entry = parseLine (c);
+                if (entry != null) {
+                    addEntry (added, entry.key, entry.value);
+                    counts[0]++;
+                }
+                c = readSortedLine (curr, c, currentFile);
+            }
+
+            if (((counts[0] + counts[1]) % 500000) == 0) {
+                added.executeBatch ();
+                added.clearBatch ();
+                removed.executeBatch ();
+                removed.clearBatch ();
+            }
+        }
+
+        prev.close ();
+        curr.close ();
+
+        added.executeBatch ();
+        added.close ();
+        removed.executeBatch ();
+        removed.close ();
+
+        outputDB.commit ();
+        outputDB.setAutoCommit (true);
+
+        return counts;
+    }
+
+
+    /*
+     * Build a new DB from an existing one plus the differences between the
+     * headings it was built from and a newer set of headings.
+     *
+     * The headings table's rowids have to stay contiguous and in key order
+     * (the browse handler does arithmetic on them), so we can't patch the old
+     * table in place.  Instead we stream the old table, the added headings
+     * and the removed headings together in key order, dropping removed
+     * headings and merging in the added ones.  That avoids reloading and
+     * re-sorting the full set of headings, which is where most of the time
+     * goes in a full build, and only the headings sharing one key are ever
+     * held in memory.
+     */
+    public void applyDelta (String previousHeadings,
+                            String currentHeadings,
+                            String previousDB,
+                            String outputPath)
+        throws Exception
+    {
+        Class.forName ("org.sqlite.JDBC");
+        Connection inputDB = DriverManager.getConnection ("jdbc:sqlite:" + previousDB);
+        outputDB = DriverManager.getConnection ("jdbc:sqlite:" + outputPath);
+
+        Statement stat = outputDB.createStatement ();
+        stat.executeUpdate ("drop table if exists headings;");
+        stat.executeUpdate ("create table headings (key, heading);");
+        stat.executeUpdate ("PRAGMA synchronous = OFF;");
+        stat.execute ("PRAGMA journal_mode = OFF;");
+        stat.close ();
+
+        int[] counts = diffHeadings (previousHeadings, currentHeadings);
+
+        System.err.println ("Applying " + counts[0] + " added and " +
+                            counts[1] + " removed headings");
+
+        outputDB.setAutoCommit (false);
+
+        PreparedStatement prep = outputDB.prepareStatement (
+            "insert into headings (key, heading) values (?, ?)");
+
+        StoredHeadings previous = new StoredHeadings (inputDB);
+
+        Statement addedStat = outputDB.createStatement ();
+        ResultSet addedRows = addedStat.executeQuery ("select key, heading from delta_added " +
+                                                      "order by key");
+        Statement removedStat = outputDB.createStatement ();
+        ResultSet removedRows = removedStat.executeQuery ("select key, heading from delta_removed " +
+                                                          "order by key");
+
+        BrowseEntry nextAddition = nextEntry (addedRows);
+        BrowseEntry nextRemoval = nextEntry (removedRows);
+
+        // The removed headings sharing the key we're currently copying.
+        byte[] removedKey = null;
+        Set<String> removedHere = new HashSet<String> ();
+
+        int count = 0;
+        while (previous.next ()) {
+            byte[] key = previous.key;
+            String heading = previous.heading;
+
+            while (nextAddition != null &&
+                   Utils.compareKeys (nextAddition.key, key) < 0) {
+                addEntry (prep, nextAddition.key, nextAddition.value);
+                count++;
+
+                nextAddition = nextEntry (addedRows);
+            }
+
+            if (removedKey == null || Utils.compareKeys (removedKey, key) != 0) {
+                removedKey = key;
+                removedHere.clear ();
+
+                while (nextRemoval != null &&
+                       Utils.compareKeys (nextRemoval.key, key) <= 0) {
+                    if (Utils.compareKeys (nextRemoval.key, key) == 0) {
+                        removedHere.add (nextRemoval.value);
+                    }
+
+                    nextRemoval = nextEntry (removedRows);
+                }
+            }
+
+            if (!removedHere.contains (heading)) {
+                addEntry (prep, key, heading);
+                count++;
+            }
+
+            if ((count % 500000) == 0) {
+                prep.executeBatch ();
+                prep.clearBatch ();
+            }
+        }
+
+        while (nextAddition != null) {
+            addEntry (prep, nextAddition.key, nextAddition.value);
+            nextAddition = nextEntry (addedRows);
+        }
+
+        addedRows.close ();
+        addedStat.close ();
+        removedRows.close ();
+        removedStat.close ();
+
+        previous.close ();
+
+        prep.executeBatch ();
+        prep.close ();
+
+        outputDB.commit ();
+        outputDB.setAutoCommit (true);
+
+        stat = outputDB.createStatement ();
+        stat.executeUpdate ("drop table delta_added;");
+        stat.executeUpdate ("drop table delta_removed;");
+        stat.close ();
+
+        if (keyBlockSize () > 0) {
+            buildKeyBlocks (keyBlockSize ());
+        } else {
+            stat = outputDB.createStatement ();
+            stat.executeUpdate ("create index keyindex on headings (key);");
+            stat.close ();
+        }
+
+        // Rowids have moved, so orderings can't be copied across, but unless
+        // we've been told otherwise, rebuild the ones the old DB had.
+        String orderings = Utils.getEnvironment ("ORDERINGS");
+
+        if (orderings == null) {
+            orderings = existingOrderings (inputDB);
+        }
+
+        inputDB.close ();
+
+        buildOrderings (orderings);
+
+        outputDB.close ();
+    }
+
+
+    private static boolean hasKeyBlocks (Connection db) throws SQLException
+    {
+        Statement stat = db.createStatement ();
+        ResultSet rs = stat.executeQuery ("select count(1) as count from sqlite_master " +
+                                          "where type = 'table' and name = 'key_blocks'");
+        rs.next ();
+
+        boolean result = (rs.getInt ("count") > 0);
+
+        rs.close ();
+        stat.close ();
+
+        return result;
+    }
+
+
+    /*
+     * Reads (key, heading) pairs back out of an existing DB in rowid order,
+     * whether its keys are stored in the headings table or in key blocks.
+     */
+    private static class StoredHeadings
+    {
+        private Statement headingStat;
+        private ResultSet headings;
+        private Statement blockStat;
+        private ResultSet blocks;
+        private Iterator<byte[]> blockKeys;
+
+        public byte[] key;
+        public String heading;
+
+
+        public StoredHeadings (Connection db) throws SQLException
+        {
+            if (hasKeyBlocks (db)) {
+                blockStat = db.createStatement ();
+                blocks = blockStat.executeQuery ("select keys from key_blocks " +
+                                                 "order by rowid");
+                blockKeys = Collections.<byte[]>emptyList ().iterator ();
+            }
+
+            headingStat = db.createStatement ();
+            headings = headingStat.executeQuery ("select * from headings " +
+                                                 "order by rowid");
+        }
+
+
+        public boolean next () throws SQLException
+        {
+            if (!headings.next ()) {
+                return false;
+            }
+
+            heading = headings.getString ("heading");
+
+            if (blocks == null) {
+                key = headings.getBytes ("key");
+            } else {
+                while (!blockKeys.hasNext () && blocks.next ()) {
+                    blockKeys = KeyBlock.decode (blocks.getBytes ("keys")).iterator ();
+                }
+
+                key = blockKeys.next ();
+            }
+
+            return true;
+        }
+
+
+        public void close () throws SQLException
+        {
+            headings.close ();
+            headingStat.close ();
+
+            if (blocks != null) {
+                blocks.close ();
+                blockStat.close ();
+            }
+        }
+    }
+
+
+    private void addKeyBlock (PreparedStatement prep, int firstRow,
+                              List<byte[]> keys)
+        throws SQLException
+    {
+        prep.setInt (1, firstRow);
+        prep.setBytes (2, keys.get (0));
+        prep.setBytes (3, KeyBlock.encode (keys));
+        prep.addBatch ();
+    }
+
+
+    /*
+     * Move the sort keys out of the headings table and into front-coded
+     * blocks of 'blockSize' keys each.  The browse handler keeps the first
+     * key of each block in memory and binary searches those, so the headings
+     * table is built without the keyindex B-tree.
+     */
+    private void buildKeyBlocks (int blockSize)
+        throws Exception
+    {
+        Statement stat = outputDB.createStatement ();
+        stat.executeUpdate ("drop table if exists key_blocks;");
+        stat.executeUpdate ("create table key_blocks (first_row, first_key, keys);");
+        stat.close ();
+
+        outputDB.setAutoCommit (false);
+
+        PreparedStatement prep = outputDB.prepareStatement (
+            "insert into key_blocks (first_row, first_key, keys) values (?, ?, ?)");
+
+        Statement read = outputDB.createStatement ();
+        ResultSet rs = read.executeQuery ("select rowid, key from headings " +
+                                          "order by rowid");
+
+        List<byte[]> keys = new ArrayList<byte[]> (blockSize);
+        int firstRow = 0;
+        int count = 0;
+
+        while (rs.next ()) {
+            if (keys.isEmpty ()) {
+                firstRow = rs.getInt ("rowid");
+            }
+
+            keys.add (rs.getBytes ("key"));
+
+            if (keys.size () == blockSize) {
+                addKeyBlock (prep, firstRow, keys);
+                keys.clear ();
+                count++;
+
+                if ((count % 10000) == 0) {
+                    prep.executeBatch ();
+                    prep.clearBatch ();
+                }
+            }
+        }
+
+        if (!keys.isEmpty ()) {
+            addKeyBlock (prep, firstRow, keys);
+        }
+
+        rs.close ();
+        read.close ();
+
+        prep.executeBatch ();
+        prep.close ();
+
+        outputDB.commit ();
+        outputDB.setAutoCommit (true);
+
+        stat = outputDB.createStatement ();
+        stat.executeUpdate ("drop table if exists all_headings;");
+        stat.executeUpdate ("create table heading_text " +
+                            "as select heading from headings order by rowid;");
+        stat.executeUpdate ("drop table headings;");
+        stat.executeUpdate ("alter table heading_text rename to headings;");
+        stat.executeUpdate ("vacuum;");
+        stat.close ();
+    }
+
+
+    /*
+     * Add a sort order for the headings collated for 'locale' with the given
+     * strength.  Rather than storing the headings again, the ordering's table
+     * lists the rowid of each heading in the headings table along with its
+     * key for this ordering, with its own rowids giving each heading's
+     * position.
+     */
+    private void buildOrdering (String name, String locale, String strength)
+        throws Exception
+    {
+        Normaliser normaliser = new Normaliser (locale,
+                                                Normaliser.strength (strength));
+        String table = "ordering_" + name;
+
+        Statement stat = outputDB.createStatement ();
+        stat.executeUpdate ("drop table if exists " + table + ";");
+        stat.executeUpdate ("drop table if exists unsorted_ordering;");
+        stat.executeUpdate ("create table unsorted_ordering (key, heading_id);");
+        stat.close ();
+
+        outputDB.setAutoCommit (false);
+
+        PreparedStatement prep = outputDB.prepareStatement (
+            "insert into unsorted_ordering (key, heading_id) values (?, ?)");
+
+        Statement read = outputDB.createStatement ();
+        ResultSet rs = read.executeQuery ("select rowid, heading from headings " +
+                                          "order by rowid");
+
+        int count = 0;
+        while (rs.next ()) {
+            prep.setBytes (1, normaliser.normalise (rs.getString ("heading")));
+            prep.setInt (2, rs.getInt ("rowid"));
+            prep.addBatch ();
+
+            if ((++count % 500000) == 0) {
+                prep.executeBatch ();
+                prep.clearBatch ();
+            }
+        }
+
+        rs.close ();
+        read.close ();
+
+        prep.executeBatch ();
+        prep.close ();
+
+        outputDB.commit ();
+        outputDB.setAutoCommit (true);
+
+        stat = outputDB.createStatement ();
+        stat.executeUpdate ("create table " + table + " " +
+                            "as select key, heading_id from unsorted_ordering " +
+                            "order by key;");
+        stat.executeUpdate ("drop table unsorted_ordering;");
+        stat.executeUpdate ("create index " + table + "_key on " + table + " (key);");
+        stat.close ();
+
+        prep = outputDB.prepareStatement (
+            "insert into orderings (name, locale, strength) values (?, ?, ?)");
+        prep.setString (1, name);
+        prep.setString (2, locale);
+        prep.setString (3, strength);
+        prep.executeUpdate ();
+        prep.close ();
+    }
+
+
+    /*
+     * The orderings an existing DB was built with, in the same form as
+     * ORDERINGS, or null if it has none.
+     */
+    private static String existingOrderings (Connection db) throws SQLException
+    {
+        Statement stat = db.createStatement ();
+        ResultSet rs = stat.executeQuery ("select count(1) as count from sqlite_master " +
+                                          "where type = 'table' and name = 'orderings'");
+        rs.next ();
+        boolean hasOrderings = (rs.getInt ("count") > 0);
+        rs.close ();
+
+        StringBuilder result = new StringBuilder ();
+
+        if (hasOrderings) {
+            rs = stat.executeQuery ("select * from orderings order by rowid");
+
+            while (rs.next ()) {
+                if (result.length () > 0) {
+                    result.append (",");
+                }
+
+                result.append (rs.getString ("name") + ":" +
+                               rs.getString ("locale") + ":" +
+                               rs.getString ("strength"));
+            }
+
+            rs.close ();
+        }
+
+        stat.close ();
+
+        return (result.length () > 0) ? result.toString () : null;
+    }
+
+
+    /*
+     * Build the extra sort orders listed in 'orderings': a comma-separated
+     * list of name:locale:strength (like "fr:fr:secondary,sv:sv:tertiary").
+     */
+    private void buildOrderings (String orderings) throws Exception
+    {
+        if (orderings == null) {
+            return;
+        }
+
+        Statement stat = outputDB.createStatement ();
+        stat.executeUpdate ("drop table if exists orderings;");
+        stat.executeUpdate ("create table orderings (name, locale, strength);");
+        stat.close ();
+
+        for (String ordering : orderings.split (",")) {
+            String[] parts = ordering.trim ().split (":");
+
+            if (parts.length != 3 || !parts[0].matches ("[A-Za-z0-9_]+")) {
+                throw new IllegalArgumentException ("Invalid ordering: " + ordering +
+                                                    " (expected name:locale:strength)");
+            }
+
+            buildOrdering (parts[0], parts[1], parts[2]);
+        }
+    }
+
+
+    private int keyBlockSize ()
+    {
+        String blockSize = Utils.getEnvironment ("KEY_BLOCK_SIZE");
+
+        return (blockSize != null) ? Integer.parseInt (blockSize) : 0;
     }
 
 
@@ -137,15 +729,32 @@ public class CreateBrowseSQLite
         br.close ();
 
         buildOrderedTables ();
+
+        if (keyBlockSize () > 0) {
+            buildKeyBlocks (keyBlockSize ());
+        }
+
+        buildOrderings (Utils.getEnvironment ("ORDERINGS"));
     }
 
 
     public static void main (String args[])
         throws Exception
     {
+        if (args.length == 5 && args[0].equals ("-delta")) {
+            CreateBrowseSQLite self = new CreateBrowseSQLite ();
+
+            self.applyDelta (args[1], args[2], args[3], args[4]);
+            return;
+        }
+
         if (args.length != 2) {
             System.err.println
                 ("Usage: CreateBrowseSQLite <headings file> <db file>");
+            System.err.println ("\nor:\n");
+            System.err.println
+                ("Usage: CreateBrowseSQLite -delta <previous headings file> "
+                 + "<current headings file> <previous db file> <new db file>");
             System.exit (0);
         }
 
@@ -14,6 +14,9 @@ import org.marc4j.marc.*;
 
 class IndexAuth
 {
+    static final String ID_FIELD = "id";
+    static final String BUILD_ID = "buildId";
+
     private static Pattern trailingPunctuationRegexp =
         Pattern.compile ("[, ./;]+$");
 
@@ -32,80 +35,202 @@ class IndexAuth
     }
 
 
-    public static void main (String args[]) throws Exception
+    private static Document buildDocument (Record record)
     {
-        String dataFile = args[0];
-        String indexDir = args[1];
+        Document doc = new Document ();
 
-        InputStream in = new FileInputStream (dataFile);
-        MarcReader reader = new MarcStreamReader (in);
+        if (record.getControlNumber () != null) {
+            doc.add (new Field (ID_FIELD,
+                                record.getControlNumber ().trim (),
+                                Field.Store.YES,
+                                Field.Index.NOT_ANALYZED));
+        }
 
-        StandardAnalyzer analyzer = (new StandardAnalyzer
-                                     (org.apache.lucene.util.Version.LUCENE_30));
+        @SuppressWarnings("unchecked")
+        List<DataField> fields = record.getDataFields ();
 
-        IndexWriter iw = new IndexWriter (FSDirectory.open (new File (indexDir)),
-                                          new IndexWriterConfig(org.apache.lucene.util.Version.LUCENE_30,
-                                                                analyzer));
+        for (DataField f : fields) {
+            String field = null;
+
+            if (f.getTag ().matches ("^1..$")) {
+                field = "preferred";
+            } else if (f.getTag ().matches ("^4..$")) {
+                field = "insteadOf";
+            } else if (f.getTag ().matches ("^5..$")) {
+                field = "seeAlso";
+            } else if (f.getTag ().matches ("^(665|663|360)$")) {
+                field = "scopenote";
+            }
+
+            if (field != null) {
+                StringBuffer sb = new StringBuffer ();
+
+                List subfields = f.getSubfields ();
+                Iterator i = subfields.iterator ();
+
+                while (i.hasNext ()) {
+                    Subfield subfield = (Subfield) i.next ();
+
+                    if (subfield.getCode () == 'w') {
+                        continue;
+                    }
+
+                    if (subfield.getCode () == 'v' ||
+                        subfield.getCode () == 'x' ||
+                        subfield.getCode () == 'y' ||
+                        subfield.getCode () == 'z') {
+                        sb.append ("-- ");
+                    }
+
+                    sb.append (subfield.getData ());
+                    sb.append (" ");
+                }
+
+                doc.add (new Field (field,
+                                    clean (sb.toString ()),
+                                    Field.Store.YES,
+                                    Field.Index.NOT_ANALYZED));
+            }
+        }
+
+        doc.add (new Field ("collection",
+                            "Authority",
+                            Field.Store.NO,
+                            Field.Index.NOT_ANALYZED));
+
+        return doc;
+    }
+
+
+    /*
+     * Apply a MARC file of new, changed and deleted records to an existing
+     * index.  Records are matched on their 001 control number and deleted
+     * records are recognised by a 'd' in the record status (leader/05).
+     */
+    private static void applyUpdates (MarcReader reader, IndexWriter iw)
+        throws Exception
+    {
+        int updated = 0;
+        int deleted = 0;
 
         while (reader.hasNext ()) {
-            Document doc = new Document ();
             Record record = reader.next ();
 
-            @SuppressWarnings("unchecked")
-            List<DataField> fields = record.getDataFields ();
+            if (record.getControlNumber () == null) {
+                System.err.println ("Skipped a record with no 001 field: " +
+                                    "it can't be matched against the index.");
+                continue;
+            }
 
-            for (DataField f : fields) {
-                String field = null;
+            Term id = new Term (ID_FIELD, record.getControlNumber ().trim ());
 
-                if (f.getTag ().matches ("^1..$")) {
-                    field = "preferred";
-                } else if (f.getTag ().matches ("^4..$")) {
-                    field = "insteadOf";
-                } else if (f.getTag ().matches ("^5..$")) {
-                    field = "seeAlso";
-                } else if (f.getTag ().matches ("^(665|663|360)$")) {
-                    field = "scopenote";
-                }
+            if (record.getLeader ().getRecordStatus () == 'd') {
+                iw.deleteDocuments (id);
+                deleted++;
+            } else {
+                iw.updateDocument (id, buildDocument (record));
+                updated++;
+            }
+        }
 
-                if (field != null) {
-                    StringBuffer sb = new StringBuffer ();
+        System.err.println ("Added or updated " + updated + " records; " +
+                            "deleted " + deleted + " records.");
+    }
 
-                    List subfields = f.getSubfields ();
-                    Iterator i = subfields.iterator ();
 
-                    while (i.hasNext ()) {
-                        Subfield subfield = (Subfield) i.next ();
+    /*
+     * Whether the index's records carry their control numbers.  Indexes built
+     * before they did have nothing for an update to match on, so updating
+     * one would just add a second copy of every changed record.
+     */
+    private static boolean hasIds (Directory dir) throws Exception
+    {
+        IndexReader reader = IndexReader.open (dir);
 
-                        if (subfield.getCode () == 'w') {
-                            continue;
-                        }
+        try {
+            if (reader.numDocs () == 0) {
+                return true;
+            }
 
-                        if (subfield.getCode () == 'v' ||
-                            subfield.getCode () == 'x' ||
-                            subfield.getCode () == 'y' ||
-                            subfield.getCode () == 'z') {
-                            sb.append ("-- ");
-                        }
+            TermEnum terms = reader.terms (new Term (ID_FIELD, ""));
 
-                        sb.append (subfield.getData ());
-                        sb.append (" ");
-                    }
+            try {
+                return (terms.term () != null &&
+                        terms.term ().field ().equals (ID_FIELD));
+            } finally {
+                terms.close ();
+            }
+        } finally {
+            reader.close ();
+        }
+    }
 
-                    doc.add (new Field (field,
-                                        clean (sb.toString ()),
-                                        Field.Store.YES,
-                                        Field.Index.NOT_ANALYZED));
-                }
+
+    public static void main (String args[]) throws Exception
+    {
+        boolean update = (args.length == 3 && args[0].equals ("-update"));
+
+        if (args.length != 2 && !update) {
+            System.err.println
+                ("Usage: IndexAuth <authority data> <index dir>");
+            System.err.println ("\nor:\n");
+            System.err.println
+                ("Usage: IndexAuth -update <authority changes> <index dir>");
+            System.exit (1);
+        }
+
+        String dataFile = update ? args[1] : args[0];
+        String indexDir = update ? args[2] : args[1];
+
+        Directory dir = FSDirectory.open (new File (indexDir));
+
+        if (update && !hasIds (dir)) {
+            System.err.println ("The index at " + indexDir + " was built " +
+                                "without record ids, so it can't be " +
+                                "updated.\nRebuild it once without -update " +
+                                "first.");
+            System.exit (1);
+        }
+
+        InputStream in = new FileInputStream (dataFile);
+        MarcReader reader = new MarcStreamReader (in);
+
+        StandardAnalyzer analyzer = (new StandardAnalyzer
+                                     (org.apache.lucene.util.Version.LUCENE_30));
+
+        IndexWriterConfig config =
+            new IndexWriterConfig(org.apache.lucene.util.Version.LUCENE_30,
+                                  analyzer);
+
+        // The handler only reopens an index incrementally if it carries the
+        // same build ID as the one it already has open, so updates keep the
+        // ID they find while full builds get a fresh one.
+        String buildId = String.valueOf (System.currentTimeMillis ());
+
+        if (update) {
+            config.setOpenMode (IndexWriterConfig.OpenMode.APPEND);
+
+            Map<String,String> userData = IndexReader.getCommitUserData (dir);
+            if (userData != null && userData.get (BUILD_ID) != null) {
+                buildId = userData.get (BUILD_ID);
             }
+        }
 
-            doc.add (new Field ("collection",
-                                "Authority",
-                                Field.Store.NO,
-                                Field.Index.NOT_ANALYZED));
+        IndexWriter iw = new IndexWriter (dir, config);
 
-            iw.addDocument (doc);
+        if (update) {
+            applyUpdates (reader, iw);
+        } else {
+            while (reader.hasNext ()) {
+                iw.addDocument (buildDocument (reader.next ()));
+            }
         }
 
+        Map<String,String> userData = new HashMap<String,String> ();
+        userData.put (BUILD_ID, buildId);
+
+        iw.commit (userData);
         iw.close ();
+        in.close ();
     }
 }
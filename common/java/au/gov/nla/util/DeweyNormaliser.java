@@ -0,0 +1,68 @@
+package au.gov.nla.util;
+
+import java.io.*;
+import java.util.regex.*;
+
+
+/*
+ * Sort keys that put Dewey class numbers in shelf order: the class number
+ * numerically (so 82 comes before 823, and 823.9 before 823.914), then
+ * anything after it (the cutter, year and so on) collated as normal.
+ *
+ *   1 byte    1 for class numbers (2 for anything we can't parse, which is
+ *             collated as normal and sorts after all the class numbers)
+ *   2 bytes   the class number's whole part plus one
+ *   4 bytes   its decimal part, in billionths
+ *   n bytes   any digits of the decimal part past the ninth (without
+ *             trailing zeros) as ASCII, then a zero byte
+ *
+ * followed by the collation key of anything left over.  A class number has
+ * one to three digits, so "2001" isn't one.
+ */
+public class DeweyNormaliser extends Normaliser
+{
+    private static Pattern deweyRegexp =
+        Pattern.compile ("^\\s*(\\d{1,3})(?!\\d)(?:\\.(\\d*))?(.*)$");
+
+
+    public byte[] normalise (String s)
+    {
+        if (s.trim ().equals ("")) {
+            return new byte[0];
+        }
+
+        Matcher m = deweyRegexp.matcher (s);
+        ByteArrayOutputStream out = new ByteArrayOutputStream ();
+
+        if (!m.matches ()) {
+            out.write (2);
+            byte[] key = super.normalise (s);
+            out.write (key, 0, key.length);
+
+            return out.toByteArray ();
+        }
+
+        out.write (1);
+        writeNumber (out, Integer.parseInt (m.group (1)) + 1, 2);
+        writeNumber (out, fraction (m.group (2), 9), 4);
+
+        String decimals = (m.group (2) != null) ? m.group (2) : "";
+        String extra = (decimals.length () > 9) ?
+            decimals.substring (9).replaceAll ("0+$", "") : "";
+
+        for (int i = 0; i < extra.length (); i++) {
+            out.write (extra.charAt (i));
+        }
+
+        out.write (0);
+
+        String rest = m.group (3).trim ();
+
+        if (!rest.equals ("")) {
+            byte[] key = super.normalise (rest);
+            out.write (key, 0, key.length);
+        }
+
+        return out.toByteArray ();
+    }
+}
@@ -0,0 +1,163 @@
+package au.gov.nla.util;
+
+import java.io.*;
+import java.util.*;
+
+
+/*
+ * Front-coded storage for a run of sorted sort keys.  Each key is written as
+ * the length of the prefix it shares with the key before it, followed by the
+ * length and bytes of whatever is left.  The first key of a block shares
+ * nothing, so any block can be decoded on its own.
+ */
+public class KeyBlock
+{
+    private static void writeVInt (ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7f) != 0) {
+            out.write ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write (value);
+    }
+
+
+    private static int sharedPrefix (byte[] a, byte[] b)
+    {
+        int len = Math.min (a.length, b.length);
+        int i = 0;
+
+        while (i < len && a[i] == b[i]) {
+            i++;
+        }
+
+        return i;
+    }
+
+
+    public static byte[] encode (List<byte[]> keys)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        byte[] previous = new byte[0];
+
+        for (byte[] key : keys) {
+            int shared = sharedPrefix (previous, key);
+
+            writeVInt (out, shared);
+            writeVInt (out, key.length - shared);
+            out.write (key, shared, key.length - shared);
+
+            previous = key;
+        }
+
+        return out.toByteArray ();
+    }
+
+
+    /*
+     * Walks the keys of a block, reusing a single buffer for the current key.
+     */
+    static class Cursor
+    {
+        private byte[] block;
+        private int pos = 0;
+
+        byte[] key = new byte[64];
+        int length = 0;
+
+
+        Cursor (byte[] block)
+        {
+            this.block = block;
+        }
+
+
+        private int readVInt ()
+        {
+            int value = 0;
+            int shift = 0;
+            int b;
+
+            do {
+                b = block[pos++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            return value;
+        }
+
+
+        boolean next ()
+        {
+            if (pos >= block.length) {
+                return false;
+            }
+
+            int shared = readVInt ();
+            int suffix = readVInt ();
+
+            length = shared + suffix;
+            if (length > key.length) {
+                key = Arrays.copyOf (key, Math.max (length, key.length * 2));
+            }
+
+            System.arraycopy (block, pos, key, shared, suffix);
+            pos += suffix;
+
+            return true;
+        }
+
+
+        // Compare the current key with 'target' in the same way as
+        // Utils.compareKeys.
+        int compareTo (byte[] target)
+        {
+            int len = Math.min (length, target.length);
+
+            for (int i = 0; i < len; i++) {
+                int diff = (key[i] & 0xff) - (target[i] & 0xff);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+
+            return length - target.length;
+        }
+    }
+
+
+    public static List<byte[]> decode (byte[] block)
+    {
+        List<byte[]> result = new ArrayList<byte[]> ();
+        Cursor cursor = new Cursor (block);
+
+        while (cursor.next ()) {
+            result.add (Arrays.copyOf (cursor.key, cursor.length));
+        }
+
+        return result;
+    }
+
+
+    /*
+     * The position within the block of the first key that sorts at or after
+     * 'target', or the number of keys in the block if there isn't one.
+     */
+    public static int search (byte[] block, byte[] target)
+    {
+        Cursor cursor = new Cursor (block);
+        int position = 0;
+
+        while (cursor.next ()) {
+            if (cursor.compareTo (target) >= 0) {
+                return position;
+            }
+
+            position++;
+        }
+
+        return position;
+    }
+}
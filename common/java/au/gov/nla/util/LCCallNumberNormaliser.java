@@ -0,0 +1,85 @@
+package au.gov.nla.util;
+
+import java.io.*;
+import java.util.regex.*;
+
+
+/*
+ * Sort keys that put Library of Congress call numbers in shelf order: class
+ * letters alphabetically, then the class number numerically (so QA7 comes
+ * before QA76, which comes before QA76.9 and QA760), then each cutter by its
+ * letter and then as a decimal (so .A12 comes before .A2).
+ *
+ * Each key has a fixed layout, so keys compare byte by byte:
+ *
+ *   1 byte    1 for call numbers (2 for anything we can't parse, which is
+ *             collated as normal and sorts after all the call numbers)
+ *   3 bytes   class letters, padded with zeros
+ *   2 bytes   class number plus one
+ *   3 bytes   the class number's decimal part, in millionths
+ *   4 bytes   for each of up to three cutters: its letter (zero if there
+ *             isn't one) and its number in millionths
+ *
+ * followed by the collation key of anything left over (years, volumes and
+ * so on).
+ *
+ * Only strings that start like a real class number count as call numbers:
+ * one to three letters, a number of up to four digits and an optional
+ * decimal part.  A cutter is a letter followed by digits.
+ */
+public class LCCallNumberNormaliser extends Normaliser
+{
+    private static final int CUTTERS = 3;
+
+    private static Pattern callNumberRegexp =
+        Pattern.compile ("^\\s*([A-Z]{1,3})\\s*(\\d{1,4})(?:\\.(\\d+))?(?!\\d)" +
+                         "(?:\\s*\\.?\\s*([A-Z])(\\d+))?" +
+                         "(?:\\s*\\.?\\s*([A-Z])(\\d+))?" +
+                         "(?:\\s*\\.?\\s*([A-Z])(\\d+))?" +
+                         "(.*)$");
+
+
+    public byte[] normalise (String s)
+    {
+        if (s.trim ().equals ("")) {
+            return new byte[0];
+        }
+
+        Matcher m = callNumberRegexp.matcher (s.toUpperCase ());
+        ByteArrayOutputStream out = new ByteArrayOutputStream ();
+
+        if (!m.matches ()) {
+            out.write (2);
+            byte[] key = super.normalise (s);
+            out.write (key, 0, key.length);
+
+            return out.toByteArray ();
+        }
+
+        out.write (1);
+
+        String letters = m.group (1);
+        for (int i = 0; i < 3; i++) {
+            out.write ((i < letters.length ()) ? letters.charAt (i) : 0);
+        }
+
+        writeNumber (out, Integer.parseInt (m.group (2)) + 1, 2);
+        writeNumber (out, fraction (m.group (3), 6), 3);
+
+        for (int i = 0; i < CUTTERS; i++) {
+            String letter = m.group (4 + (2 * i));
+
+            out.write ((letter != null) ? letter.charAt (0) : 0);
+            writeNumber (out, fraction (m.group (5 + (2 * i)), 6), 3);
+        }
+
+        String rest = m.group (4 + (2 * CUTTERS)).trim ();
+
+        if (!rest.equals ("")) {
+            byte[] key = super.normalise (rest);
+            out.write (key, 0, key.length);
+        }
+
+        return out.toByteArray ();
+    }
+}
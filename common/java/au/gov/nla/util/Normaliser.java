@@ -10,6 +10,7 @@ import java.util.regex.*;
 import au.gov.nla.util.*;
 
 import com.ibm.icu.text.Collator;
+import com.ibm.icu.util.ULocale;
 
 public class Normaliser
 {
@@ -27,13 +28,50 @@ public class Normaliser
     }
 
 
+    // Collate for 'locale' (like "fr" or "sv_SE") with the given Collator
+    // strength.
+    public Normaliser (String locale, int strength)
+    {
+        collator = Collator.getInstance (new ULocale (locale));
+        collator.setStrength (strength);
+    }
+
+
+    // The Collator strength called 'name' (like "secondary")
+    public static int strength (String name)
+    {
+        String s = name.trim ().toUpperCase ();
+
+        if (s.equals ("PRIMARY")) {
+            return Collator.PRIMARY;
+        } else if (s.equals ("SECONDARY")) {
+            return Collator.SECONDARY;
+        } else if (s.equals ("TERTIARY")) {
+            return Collator.TERTIARY;
+        } else if (s.equals ("QUATERNARY")) {
+            return Collator.QUATERNARY;
+        } else if (s.equals ("IDENTICAL")) {
+            return Collator.IDENTICAL;
+        }
+
+        throw new IllegalArgumentException ("Unknown collation strength: " + name);
+    }
+
+
     public static Normaliser getInstance () throws Exception
     {
-        Normaliser normaliser;
+        return getInstance (Utils.getEnvironment ("NORMALISER"));
+    }
+
 
-        if (Utils.getEnvironment ("NORMALISER") != null) {
-            String normaliserClass = Utils.getEnvironment ("NORMALISER");
+    // An instance of the named Normaliser class (or the default one if
+    // 'normaliserClass' is null).
+    public static Normaliser getInstance (String normaliserClass)
+        throws Exception
+    {
+        Normaliser normaliser;
 
+        if (normaliserClass != null) {
             normaliser = (Normaliser) (Class.forName (normaliserClass)
                         .getConstructor ()
                         .newInstance ());
@@ -45,6 +83,35 @@ public class Normaliser
     }
 
 
+    // Write the lowest 'bytes' bytes of 'value', most significant first.
+    protected static void writeNumber (ByteArrayOutputStream out,
+                                       long value, int bytes)
+    {
+        for (int i = bytes - 1; i >= 0; i--) {
+            out.write ((int) ((value >>> (8 * i)) & 0xff));
+        }
+    }
+
+
+    // The digits after a decimal point as a whole number of 10^-places
+    // (so "9" and "90" both give 900 for three places).  Extra digits are
+    // dropped.
+    protected static long fraction (String digits, int places)
+    {
+        long result = 0;
+
+        for (int i = 0; i < places; i++) {
+            result *= 10;
+
+            if (digits != null && i < digits.length ()) {
+                result += digits.charAt (i) - '0';
+            }
+        }
+
+        return result;
+    }
+
+
     public byte[] normalise (String s)
     {
         s = s.replaceAll (" +", " ")
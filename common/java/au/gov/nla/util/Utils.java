@@ -7,4 +7,23 @@ public class Utils
         return (System.getenv (var) != null) ?
             System.getenv (var) : System.getProperty (var.toLowerCase ());
     }
+
+
+    /*
+     * Compare two sort keys the way SQLite compares blobs: byte by byte,
+     * treating each byte as unsigned.
+     */
+    public static int compareKeys (byte[] a, byte[] b)
+    {
+        int len = Math.min (a.length, b.length);
+
+        for (int i = 0; i < len; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+
+        return a.length - b.length;
+    }
 }
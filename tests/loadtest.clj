@@ -0,0 +1,337 @@
+;; java -Dfile.encoding=UTF-8 -cp 'build/deps/WEB-INF/lib/*:build/common:build/browse-indexing:build/browse-handler:libs/*:' clojure.main tests/loadtest.clj [option=value ...] 2>/dev/null
+;;
+;; Runs browse traffic against the handler in the same embedded Solr setup as
+;; tests.clj, but with one large synthetic source, and reports throughput and
+;; latency for each number of threads.  Options:
+;;
+;;   headings=200000   how many headings the synthetic source has
+;;   threads=1,2,4,8   the thread counts to measure, one after another
+;;   seconds=30        how long to measure each thread count for
+;;   warmup=5          seconds of unmeasured traffic before each measurement
+;;   rows=20           headings per page
+;;   zipf=1.0          how skewed the choice of heading is (0 for uniform)
+;;   replay=FILE       replay a request log instead of generating traffic
+;;
+;; Generated traffic is a mix of browses from popular headings, chains of
+;; pages following on from one, and "jump to" browses around a short
+;; prefix.  A replay file has one request per line, either as a query string
+;; or as a Solr log line with params={...}.  Every replayed request is sent
+;; to the synthetic source, whichever source it was for originally.
+
+(ns loadtest
+  (:use [clojure.java.io :as jio])
+  (:require [clojure.string :as string])
+  (:import (org.apache.lucene.analysis.standard StandardAnalyzer)
+           (org.apache.lucene.document Document Field Field$Store Field$Index)
+           (org.apache.lucene.store FSDirectory)
+           (org.apache.lucene.index IndexWriter IndexWriter$MaxFieldLength)
+           (org.apache.lucene.util Version)
+           (java.io File)
+           (java.net URLDecoder)
+           (java.util ArrayList Arrays Collections Random)
+           (java.util.concurrent Executors TimeUnit)
+           (java.util.concurrent.atomic AtomicLong)
+           (com.google.common.io Files)
+
+           (org.apache.solr.core CoreContainer CoreContainer$Initializer)
+           (org.apache.solr.client.solrj.embedded EmbeddedSolrServer)
+           (org.apache.solr.client.solrj SolrQuery)))
+
+
+;; The synthetic source stands in for "author" in tests/solr/solrconfig.xml
+(def source-name "author")
+(def field-name "author_browse")
+
+
+(def default-options {"headings" "200000"
+                      "threads" "1,2,4,8"
+                      "seconds" "30"
+                      "warmup" "5"
+                      "rows" "20"
+                      "zipf" "1.0"})
+
+
+(defn parse-options [args]
+  (merge default-options
+         (into {} (for [arg args]
+                    (let [[option value] (string/split arg #"=" 2)]
+                      [option value])))))
+
+
+
+;;; Building the synthetic source
+
+(def syllables ["an" "ba" "dra" "el" "fen" "ga" "hol" "is" "ken" "li"
+                "mas" "nor" "os" "pel" "qui" "ri" "sto" "tor" "ul" "vel"
+                "wy" "zu"])
+
+
+(defn synthetic-word [^Random rnd]
+  (let [word (apply str (repeatedly (inc (.nextInt rnd 3))
+                                    #(nth syllables (.nextInt rnd (count syllables)))))]
+    (str (string/upper-case (subs word 0 1)) (subs word 1))))
+
+
+;; Something like a name heading: "Surname, Forename Middle"
+(defn synthetic-heading [^Random rnd]
+  (str (synthetic-word rnd) ", "
+       (synthetic-word rnd) " "
+       (synthetic-word rnd)))
+
+
+(defn synthetic-headings [n ^Random rnd]
+  (vec (take n (distinct (repeatedly #(synthetic-heading rnd))))))
+
+
+(defn new-index-writer [index-file]
+  (IndexWriter. (FSDirectory/open (jio/file index-file))
+                (StandardAnalyzer. Version/LUCENE_31)
+                IndexWriter$MaxFieldLength/UNLIMITED))
+
+
+;; Between one and four records for each heading
+(defn populate-bib-index [headings index-file ^Random rnd]
+  (with-open [iw (new-index-writer index-file)]
+    (doseq [[id heading] (map-indexed vector headings)
+            copy (range (inc (.nextInt rnd 4)))]
+      (.addDocument iw (doto (Document.)
+                         (.add (Field. "id" (str id "-" copy)
+                                       Field$Store/YES
+                                       Field$Index/NOT_ANALYZED))
+                         (.add (Field. field-name heading
+                                       Field$Store/NO
+                                       Field$Index/NOT_ANALYZED)))))))
+
+
+(defn build-source [tmpdir headings ^Random rnd]
+  (let [bib-index (file tmpdir "biblio" "index")
+        tmp-headings (File/createTempFile "nla-browse-handler-loadtest" "")]
+    (with-open [iw (new-index-writer (file (doto (file tmpdir "authority")
+                                             .mkdirs)
+                                           "index"))])
+    (populate-bib-index headings bib-index rnd)
+    (try
+      (PrintBrowseHeadings/main (into-array [(str bib-index)
+                                             field-name
+                                             (str tmp-headings)]))
+      (CreateBrowseSQLite/main (into-array [(str tmp-headings)
+                                            (str (file tmpdir
+                                                       (str source-name
+                                                            "_browse.db")))]))
+      (finally
+       (.delete tmp-headings)))))
+
+
+;; The test config, browsing only the synthetic source.  Suggestions are
+;; turned off: building them would compete with the measured traffic.
+(defn write-config [tmpdir]
+  (.mkdir (file tmpdir "conf"))
+  (spit (file tmpdir "conf" "solrconfig.xml")
+        (-> (slurp "tests/solr/solrconfig.xml")
+            (string/replace #"<str name=\"sources\">[^<]*</str>"
+                            (str "<str name=\"sources\">" source-name "</str>"))
+            (string/replace #"\s*<str name=\"suggest\">true</str>" "")))
+  (Files/copy (file "tests/solr/schema.xml")
+              (file tmpdir "conf" "schema.xml")))
+
+
+
+;;; Generating traffic
+
+;; Returns a function picking a number from 0 to n-1, where k comes up in
+;; proportion to 1/(k+1)^s.
+(defn zipf-sampler [n s]
+  (let [cdf (double-array n)]
+    (loop [k 0
+           total 0.0]
+      (when (< k n)
+        (let [total (+ total (/ 1.0 (Math/pow (inc k) s)))]
+          (aset cdf k total)
+          (recur (inc k) total))))
+    (let [total (aget cdf (dec n))]
+      (fn [^Random rnd]
+        (let [idx (Arrays/binarySearch cdf (* total (.nextDouble rnd)))]
+          (min (dec n) (if (neg? idx) (- (inc idx)) idx)))))))
+
+
+;; Popular headings are scattered through the alphabet rather than bunched
+;; up at the start.
+(defn heading-picker [headings s]
+  (let [order (ArrayList. ^java.util.Collection (range (count headings)))
+        sample (zipf-sampler (count headings) s)]
+    (Collections/shuffle order (Random. 42))
+    (fn [rnd]
+      (nth headings (.get order (sample rnd))))))
+
+
+(defn browse-request [server params]
+  (let [query (doto (SolrQuery.)
+                (.setQueryType "/browse"))]
+    (doseq [[param value] params]
+      (.setParam query param (into-array String (if (coll? value)
+                                                  (map str value)
+                                                  [(str value)]))))
+    (.getResponse (.query server query))))
+
+
+(defn generated-session [pick-heading rows]
+  (fn [^Random rnd run]
+    (let [roll (.nextDouble rnd)
+          heading (pick-heading rnd)]
+      (cond
+       ;; A browse from a heading
+       (< roll 0.6)
+       (run {"source" source-name "from" heading "rows" rows})
+
+       ;; ... followed by a few more pages
+       (< roll 0.85)
+       (when-let [response (run {"source" source-name
+                                 "from" heading
+                                 "rows" rows})]
+         (let [start (.get (.get response "Browse") "startRow")]
+           (doseq [page (range 1 (+ 2 (.nextInt rnd 4)))]
+             (run {"source" source-name
+                   "rowid" start
+                   "offset" (* page rows)
+                   "rows" rows}))))
+
+       ;; Jumping to whatever comes around a prefix
+       :else
+       (run {"source" source-name
+             "from" (subs heading 0 (min (count heading)
+                                         (inc (.nextInt rnd 3))))
+             "before" (quot rows 2)
+             "after" (- rows (quot rows 2))})))))
+
+
+;; The parameters of a logged request, or nil if it isn't a browse
+(defn parse-request-line [line]
+  (let [params (if-let [[_ params] (re-find #"params=\{([^}]*)\}" line)]
+                 params
+                 line)]
+    (when (and (not (string/blank? params))
+               (or (not (re-find #"path=" line))
+                   (re-find #"path=/browse\b" line)))
+      (assoc (reduce (fn [result pair]
+                       (let [[param value] (string/split pair #"=" 2)]
+                         (update-in result
+                                    [(URLDecoder/decode param "UTF-8")]
+                                    (fnil conj [])
+                                    (URLDecoder/decode (or value "") "UTF-8"))))
+                     {}
+                     (remove string/blank? (string/split (string/trim params) #"&")))
+        "source" source-name))))
+
+
+(defn replay-session [log-file]
+  (let [requests (with-open [rdr (jio/reader log-file)]
+                   (vec (keep parse-request-line (line-seq rdr))))
+        next-request (AtomicLong.)]
+    (when (empty? requests)
+      (throw (Exception. (str "No browse requests found in " log-file))))
+    (println "Replaying" (count requests) "requests from" log-file)
+    (fn [rnd run]
+      (run (nth requests (mod (.getAndIncrement next-request)
+                              (count requests)))))))
+
+
+
+;;; Measuring
+
+;; 'errors' holds the number of failed requests and the first one's message
+(defn timed-request [server params ^ArrayList latencies errors]
+  (let [start (System/nanoTime)]
+    (try
+      (let [response (browse-request server params)]
+        (.add latencies (- (System/nanoTime) start))
+        response)
+      (catch Exception e
+        (swap! errors #(-> %
+                           (update-in [:count] inc)
+                           (update-in [:first-error] (fnil identity (str e)))))
+        nil))))
+
+
+(defn run-load [server session threads seconds]
+  (let [errors (atom {:count 0 :first-error nil})
+        latencies (vec (repeatedly threads #(ArrayList.)))
+        pool (Executors/newFixedThreadPool threads)
+        start (System/nanoTime)
+        deadline (+ (System/currentTimeMillis) (* 1000 seconds))]
+    (doseq [t (range threads)]
+      (.execute pool
+                (fn []
+                  (let [rnd (Random. (+ (* 1000 threads) t))
+                        run #(timed-request server % (latencies t) errors)]
+                    (while (< (System/currentTimeMillis) deadline)
+                      (session rnd run))))))
+    (.shutdown pool)
+    (.awaitTermination pool Long/MAX_VALUE TimeUnit/SECONDS)
+    (let [elapsed (/ (- (System/nanoTime) start) 1e9)
+          sorted (long-array (apply concat latencies))]
+      (Arrays/sort sorted)
+      {:requests (alength sorted)
+       :errors (:count @errors)
+       :first-error (:first-error @errors)
+       :elapsed elapsed
+       :latencies sorted})))
+
+
+(defn percentile [^longs sorted p]
+  (if (zero? (alength sorted))
+    0.0
+    (/ (aget sorted (min (dec (alength sorted))
+                         (long (* p (alength sorted)))))
+       1e6)))
+
+
+(defn report [threads {:keys [requests errors first-error elapsed latencies]}]
+  (println (format "%7d %10d %7d %10.1f %9.2f %9.2f %9.2f"
+                   threads requests errors (/ requests elapsed)
+                   (percentile latencies 0.5)
+                   (percentile latencies 0.99)
+                   (percentile latencies 0.999)))
+  (when first-error
+    (println "        first error:" first-error)))
+
+
+
+(defn main [args]
+  (let [options (parse-options args)
+        heading-count (Integer/parseInt (options "headings"))
+        thread-counts (map #(Integer/parseInt %)
+                           (string/split (options "threads") #","))
+        seconds (Integer/parseInt (options "seconds"))
+        warmup (Integer/parseInt (options "warmup"))
+        rows (Integer/parseInt (options "rows"))
+        rnd (Random. 42)
+        tmpdir (Files/createTempDir)]
+    (try
+      (println "Generating" heading-count "headings")
+      (let [headings (synthetic-headings heading-count rnd)]
+        (build-source tmpdir headings rnd)
+        (write-config tmpdir)
+        (System/setProperty "solr.solr.home" (str tmpdir))
+
+        (let [core (.initialize (new CoreContainer$Initializer))
+              server (EmbeddedSolrServer. core "")
+              session (if (options "replay")
+                        (replay-session (options "replay"))
+                        (generated-session (heading-picker
+                                            headings
+                                            (Double/parseDouble (options "zipf")))
+                                           rows))]
+          (println (format "\n%7s %10s %7s %10s %9s %9s %9s"
+                           "threads" "requests" "errors" "req/s"
+                           "p50 ms" "p99 ms" "p999 ms"))
+          (doseq [threads thread-counts]
+            (when (pos? warmup)
+              (run-load server session threads warmup))
+            (report threads (run-load server session threads seconds)))
+          (.shutdown core)))
+      (finally
+       (Files/deleteRecursively tmpdir)
+       (shutdown-agents)))))
+
+
+(main *command-line-args*)
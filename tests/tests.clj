@@ -10,8 +10,13 @@
            (org.apache.lucene.util Version)
            (java.io File)
            (com.google.common.io Files)
+           (org.apache.commons.codec.binary Base64)
 
+           (org.apache.solr.common SolrException SolrInputDocument)
+           (org.apache.solr.common.params MapSolrParams)
            (org.apache.solr.core CoreContainer CoreContainer$Initializer)
+           (org.apache.solr.request LocalSolrQueryRequest)
+           (org.apache.solr.response SolrQueryResponse)
            (org.apache.solr.client.solrj.embedded EmbeddedSolrServer)
            (org.apache.solr.client.solrj SolrQuery)))
 
@@ -38,6 +43,36 @@
       (.addDocument iw (heading-document field-name heading)))))
 
 
+(defn populate-authority-index [records index-file]
+  (with-open [iw (IndexWriter.
+                  (FSDirectory/open (jio/file index-file))
+                  (StandardAnalyzer. Version/LUCENE_31)
+                  IndexWriter$MaxFieldLength/UNLIMITED)]
+    (doseq [record records]
+      (let [doc (Document.)]
+        (doseq [[field-name values] record
+                value values]
+          (.add doc (Field. field-name value
+                            org.apache.lucene.document.Field$Store/YES
+                            org.apache.lucene.document.Field$Index/NOT_ANALYZED)))
+        (.addDocument iw doc)))))
+
+
+(defn populate-bib-index [field-name headings index-file]
+  (with-open [iw (IndexWriter.
+                  (FSDirectory/open (jio/file index-file))
+                  (StandardAnalyzer. Version/LUCENE_31)
+                  IndexWriter$MaxFieldLength/UNLIMITED)]
+    (doseq [[id heading] (map-indexed vector headings)]
+      (.addDocument iw (doto (Document.)
+                         (.add (Field. "id" (str field-name "-" id)
+                                       org.apache.lucene.document.Field$Store/YES
+                                       org.apache.lucene.document.Field$Index/NOT_ANALYZED))
+                         (.add (Field. field-name heading
+                                       org.apache.lucene.document.Field$Store/NO
+                                       org.apache.lucene.document.Field$Index/NOT_ANALYZED)))))))
+
+
 (defn do-browse [server browse-type & [opts]]
   (mapv #(.get % "heading")
         (-> (.query server
@@ -52,6 +87,176 @@
             (.get "items"))))
 
 
+(defn do-browse-around [server browse-type from before after]
+  (let [result (-> (.query server
+                           (doto (SolrQuery.)
+                             (.setQueryType "/browse")
+                             (.setParam "source" (into-array [browse-type]))
+                             (.setParam "from" (into-array [from]))
+                             (.setParam "before" (into-array [(str before)]))
+                             (.setParam "after" (into-array [(str after)]))))
+                   .getResponse
+                   (.get "Browse"))]
+    {:headings (mapv #(.get % "heading") (.get result "items"))
+     :match (.get result "matchIndex")}))
+
+
+(defn do-browse-fields [server browse-type fl]
+  (mapv #(set (map key %))
+        (-> (.query server
+                    (doto (SolrQuery.)
+                      (.setQueryType "/browse")
+                      (.setParam "source" (into-array [browse-type]))
+                      (.setParam "rows" (into-array ["2"]))
+                      (.setParam "fl" (into-array [fl]))))
+            .getResponse
+            (.get "Browse")
+            (.get "items"))))
+
+
+(defn do-browse-items [server browse-type params]
+  (let [query (doto (SolrQuery.)
+                (.setQueryType "/browse")
+                (.setParam "source" (into-array [browse-type])))]
+    (doseq [[param value] params]
+      (.setParam query param (into-array [value])))
+    (mapv #(into {} %)
+          (-> (.query server query)
+              .getResponse
+              (.get "Browse")
+              (.get "items")))))
+
+
+(defn do-export [server browse-type params]
+  (let [query (doto (SolrQuery.)
+                (.setQueryType "/browse")
+                (.setParam "source" (into-array [browse-type]))
+                (.setParam "export" (into-array ["true"])))]
+    (doseq [[param value] params]
+      (.setParam query param (into-array [value])))
+    (mapv #(into {} %)
+          (-> (.query server query)
+              .getResponse
+              (.get "Export")))))
+
+
+(defn do-suggest [server browse-type prefix]
+  ;; Suggestions are built in the background, so give them a moment
+  (loop [attempts 50]
+    (let [result (mapv #(.get % "heading")
+                       (-> (.query server
+                                   (doto (SolrQuery.)
+                                     (.setQueryType "/browse")
+                                     (.setParam "source" (into-array [browse-type]))
+                                     (.setParam "suggest" (into-array [prefix]))))
+                           .getResponse
+                           (.get "Suggest")))]
+      (if (or (seq result) (zero? attempts))
+        result
+        (do (Thread/sleep 100)
+            (recur (dec attempts)))))))
+
+
+(defn do-batch-browse [server browse-types params]
+  (let [query (doto (SolrQuery.)
+                (.setQueryType "/browse")
+                (.setParam "source" (into-array browse-types))
+                (.setParam "rows" (into-array ["2"])))]
+    (doseq [[param value] params]
+      (.setParam query param (into-array [value])))
+    (let [browses (-> (.query server query)
+                      .getResponse
+                      (.get "Browses"))]
+      (into {}
+            (for [browse-type browse-types]
+              [browse-type (mapv #(.get % "heading")
+                                 (.get (.get browses browse-type) "items"))])))))
+
+
+(defn do-late-browse [solr-core handler params]
+  ;; The request claims to have started at the epoch, so any timeAllowed
+  ;; has run out before it begins
+  (let [req (proxy [LocalSolrQueryRequest] [solr-core (MapSolrParams. params)]
+              (getStartTime [] 0))
+        rsp (SolrQueryResponse.)]
+    (try
+      (.execute solr-core (.getRequestHandler solr-core handler) req rsp)
+      (when (.getException rsp)
+        (throw (.getException rsp)))
+      (.get (.getValues rsp) "Browse")
+      (finally
+       (.close req)))))
+
+
+(defn solr-error-code [f]
+  (try
+    (f)
+    nil
+    (catch Exception e
+      (loop [e e]
+        (cond (nil? e) nil
+              (instance? SolrException e) (.code e)
+              :else (recur (.getCause e)))))))
+
+
+(defn field-value [obj field-name]
+  (let [field (.getDeclaredField (class obj) field-name)]
+    (.setAccessible field true)
+    (.get field obj)))
+
+
+(defn read-headings-file [f]
+  (remove empty? (.split (slurp f) "\r\n")))
+
+
+(defn write-headings-file [f lines]
+  (spit f (apply str (map #(str % "\r\n") lines))))
+
+
+(defn headings-line [key heading]
+  (str (String. (Base64/encodeBase64 (.getBytes key "UTF-8"))) "\u0001" heading))
+
+
+(defn build-browse-db [build headings-file db-file]
+  (case build
+    :full
+    (CreateBrowseSQLite/main (into-array [(str headings-file) (str db-file)]))
+
+    ;; Build a DB from an older set of headings (missing one, with one that
+    ;; has since gone), then bring it up to date with -delta.
+    :delta
+    (let [previous (File/createTempFile "nla-browse-handler-tests" "")
+          current (File/createTempFile "nla-browse-handler-tests" "")
+          previous-db (file (.getParentFile db-file)
+                            (str "previous_" (.getName db-file)))
+          lines (sort (read-headings-file headings-file))]
+      (try
+        (write-headings-file current lines)
+        (write-headings-file previous
+                             (sort (conj (vec (rest lines))
+                                         (headings-line "stale" "Stale heading"))))
+
+        (CreateBrowseSQLite/main (into-array [(str previous) (str previous-db)]))
+
+        ;; The old DB's orderings should carry over without being asked for
+        (System/clearProperty "orderings")
+
+        (CreateBrowseSQLite/main (into-array ["-delta"
+                                              (str previous) (str current)
+                                              (str previous-db) (str db-file)]))
+        (finally
+         (.delete previous)
+         (.delete current))))
+
+    ;; Keys stored in front-coded blocks rather than the headings table
+    :key-blocks
+    (try
+      (System/setProperty "key_block_size" "4")
+      (CreateBrowseSQLite/main (into-array [(str headings-file) (str db-file)]))
+      (finally
+       (System/clearProperty "key_block_size")))))
+
+
 (def test-browses [{:name "author"
                     :headings  [{:heading "AAA"}
                                 {:heading "Äardvark"}
@@ -61,6 +266,7 @@
                                 {:heading "grapefruit"}]}
 
                    {:name "title"
+                    :orderings "sv:sv:secondary"
                     :headings  [{:heading "AAA"
                                  :sort-key "AAA"}
                                 {:heading "Äardvark"
@@ -78,6 +284,38 @@
                                 {:heading "   inappropriate leading space"
                                  :sort-key "   inappropriate leading space"}]}
 
+                   {:name "fruit_a"
+                    :headings [{:heading "Apple"}
+                               {:heading "Cherry"}
+                               {:heading "Mango"}]}
+
+                   {:name "fruit_b"
+                    :headings [{:heading "Banana"}
+                               {:heading "Cherry"}
+                               {:heading "Zucchini"}]}
+
+                   {:name "lcc"
+                    :normaliser "au.gov.nla.util.LCCallNumberNormaliser"
+                    :headings [{:heading "QA76.9 .C2"}
+                               {:heading "QA7 .B5"}
+                               {:heading "QB1 .A1"}
+                               {:heading "QA760 .A1"}
+                               {:heading "QA76 .A12"}
+                               {:heading "QA76 .A2"}
+                               {:heading "Periodicals"}
+                               {:heading "QA12345"}]}
+
+                   {:name "dewey"
+                    :normaliser "au.gov.nla.util.DeweyNormaliser"
+                    :headings [{:heading "823.914"}
+                               {:heading "900"}
+                               {:heading "82"}
+                               {:heading "823.9"}
+                               {:heading "8.5"}
+                               {:heading "823.9140000002"}
+                               {:heading "823.9140000001"}
+                               {:heading "2001"}]}
+
                    {:name "sample0", :headings [{:heading "Adoración nocturna española : sección de San Sebastián : datos históricos de su fundación, desarrollo y actuación, bodas de plata y memoria de sus bodas de oro : 1905-1955", :sort-key "adoración nocturna española: sección de san sebastián : datos históricos de su fundación, desarrollo y actuación, bodas de plata y memoria de sus bodas de oro : 1905-1955"} {:heading "Ahatetxoa eta sahats negartia", :sort-key "ahatetxoa eta sahats negartia"} {:heading "Análisis de las aguas sulfurosas frías ferro-manganíferas nitrogenadas de los manatiales y de los baños y castañar de Ormáiztegui (Guipúzcoa)", :sort-key "análisis de las aguas sulfurosas frías ferro-manganíferas nitrogenadas de los manatiales y de los baños y castañar de ormáiztegui (guipúzcoa)"} {:heading "Atlas geográfico, histórico y estadístico de España y sus posesiones de Ultramar", :sort-key "atlas geográfico, histórico y estadístico de españa y sus posesiones de ultramar"} {:heading "Una aventura olímpica", :sort-key "aventura olímpica"} {:heading "Belokeko abatetxearen historia : ehun urte jainkosemen alde : (1875-1975)", :sort-key "belokeko abatetxearen historia: ehun urte jainkosemen alde : (1875-1975)"} {:heading "Christmas Carol Festival [Música impresa]", :sort-key "christmas carol festival"} {:heading "Crazy Heart [Grabación sonora] : Original Motion Picture Soundtrack", :sort-key "crazy heart: original motion picture soundtrack"} {:heading "Cuentos para niños", :sort-key "cuentos para niños"} {:heading "Cuerpo de oficiales de la administración de justicia : temario teórico : volumen 1.", :sort-key "cuerpo de oficiales de la administración de justicia: temario teórico : volumen 1."} {:heading "Desastres naturales [Vídeo]", :sort-key "desastres naturales"} {:heading "Errepideko mamua", :sort-key "errepideko mamua"} {:heading "Etude op. 11 no. 4 [Música impresa] : marimba", :sort-key "etude op. 11 no. 4: marimba"} {:heading "Fines de la pena : (importancia, dificultad y actualidad del tema)", :sort-key "fines de la pena: (importancia, dificultad y actualidad del tema)"} {:heading "Los hijos de la tierra 2. El valle de los caballos 1.", :sort-key "hijos de la tierra"} {:heading "Introducción a la didáctica de la lengua y la literatura : un enfoque sociocrítico", :sort-key "introducción a la didáctica de la lengua y la literatura: un enfoque sociocrítico"} {:heading "Jim Jam & Sunny. ¡Qué bueno es compartir!. Soñar despiertos [DVD-Vídeo]", :sort-key "jim jam & sunny"} {:heading "Jonasek arazo potolo bat du", :sort-key "jonasek arazo potolo bat du"} {:heading "Koldo Mitxelena entre nosotros", :sort-key "koldo mitxelena entre nosotros"} {:heading "El Laberinto sentimental", :sort-key "laberinto sentimental"}]}
 
                    {:name "sample1", :headings [{:heading "101 dálmatas [DVD-Vídeo] : más vivos que nunca", :sort-key "101 dálmatas: más vivos que nunca"} {:heading "Amorante eskuzabala", :sort-key "amorante eskuzabala"} {:heading "Antología de la Nueva Trova Cubana [Grabación sonora] : 25 aniversario", :sort-key "antología de la nueva trova cubana: 25 aniversario"} {:heading "El árbol de los cuentos : cuentos reunidos 1973-2004", :sort-key "árbol de los cuentos: cuentos reunidos 1973-2004"} {:heading "La Batalla de Tebas : Egipto contra los hicsos", :sort-key "batalla de tebas: egipto contra los hicsos"} {:heading "Bob Marley : \"Positive vibration\"", :sort-key "bob marley: \"positive vibration\""} {:heading "La Clave", :sort-key "clave"} {:heading "El clavo [DVD-Vídeo]", :sort-key "clavo"} {:heading "Climate change : impacts and responses", :sort-key "climate change : impacts and responses"} {:heading "Il Colore nel cinema", :sort-key "colore nel cinema"} {:heading "Comentario al fuero de los españoles : teoria jurídica de los derechos humanos. IV", :sort-key "comentario al fuero de los españoles: teoria jurídica de los derechos humanos. iv"} {:heading "Cómo hablar en público y no parecer un idiota", :sort-key "cómo hablar en público y no parecer un idiota"} {:heading "Con el consentimiento del cuerpo", :sort-key "con el consentimiento del cuerpo"} {:heading "Cosas del lenguaje : etimología, lexicología, semántica", :sort-key "cosas del lenguaje: etimología, lexicología, semántica"} {:heading "El documento fotográfico :Historia, usos y aplicaciones", :sort-key "documento fotográfico:historia, usos y aplicaciones"} {:heading "Doña Piñones", :sort-key "doña piñones"} {:heading "Drum Sessions [Música impresa] : Comprehensive Method for Individual or Group Study : Book 2", :sort-key "drum sessions: comprehensive method for individual or group study : book 2"} {:heading "Grafología", :sort-key "grafología"} {:heading "Guerra en la familia", :sort-key "guerra en la familia"} {:heading "Der Hundetraum : und andere Verwirrungen", :sort-key "hundetraum: und andere verwirrungen"}]}
@@ -119,15 +357,27 @@
                    ])
 
 
-(defn main []
+(def authority-records [{"heading" ["Apple"]
+                         "see_also" ["Banana"]
+                         "scope_note" ["The fruit, not the company"]}
+                        {"heading" ["Orange"]
+                         "use_for" ["grapefruit"]}])
+
+
+(defn main [build]
   (let [tmpdir (Files/createTempDir)
         authority-index (file (doto (file tmpdir "authority")
                                 .mkdirs)
                               "index")
+        ;; A copy for the handler that holds it in memory
+        snapshot-authority-index (file (doto (file tmpdir "authority_snapshot")
+                                         .mkdirs)
+                                       "index")
         bib-index (file tmpdir "index")]
     (try
 
-      (populate-index [] "authority" authority-index)
+      (populate-authority-index authority-records authority-index)
+      (populate-authority-index authority-records snapshot-authority-index)
 
       (doseq [browse test-browses]
         (println "Loading browse headings:" (:name browse))
@@ -136,9 +386,16 @@
           (try
             (populate-index (:headings browse) (:name browse) bib-index)
 
-            (doseq [prop ["bibleech" "sortfield" "valuefield"]]
+            (doseq [prop ["bibleech" "sortfield" "valuefield" "normaliser"
+                          "orderings"]]
               (System/clearProperty prop))
 
+            (when (:normaliser browse)
+              (System/setProperty "normaliser" (:normaliser browse)))
+
+            (when (:orderings browse)
+              (System/setProperty "orderings" (:orderings browse)))
+
             (when (:sort-key (first (:headings browse)))
               (System/setProperty "bibleech" "StoredFieldLeech")
               (System/setProperty "sortfield" (str "sort-" (:name browse)))
@@ -149,12 +406,15 @@
                                                    (:name browse)
                                                    (str tmp-headings)]) )
 
-            (CreateBrowseSQLite/main (into-array [(str tmp-headings)
-                                                  (str tmpdb)]))
+            (build-browse-db build tmp-headings tmpdb)
             (finally
              (.delete tmp-headings)))))
 
 
+      (populate-bib-index "author_browse"
+                          ["Orange" "Apple" "AAA" "Banana" "grapefruit" "Äardvark"]
+                          (file tmpdir "biblio" "index"))
+
       (System/setProperty "solr.solr.home" (str tmpdir))
 
       (.mkdir (file tmpdir "conf"))
@@ -169,7 +429,7 @@
       (let [core (.initialize (new CoreContainer$Initializer))
             server (EmbeddedSolrServer. core "")]
 
-        (println "\n====== Running tests ======\n")
+        (println (str "\n====== Running tests (" (name build) " build) ======\n"))
         ;; Browse request!  finally...
         (is (=
              (do-browse server "author")
@@ -202,6 +462,198 @@
              ["Äardvark" "Apple" "Banana" "grapefruit"]))
 
 
+        ;; Headings either side of a match
+        (is (=
+             (do-browse-around server "title" "Banana" 2 2)
+             {:headings ["Äardvark" "Apple" "Banana" "grapefruit"]
+              :match 2}))
+
+        (is (=
+             (do-browse-around server "title" "AAA" 2 2)
+             {:headings ["AAA" "Äardvark"]
+              :match 0}))
+
+
+        ;; Several sources in one request
+        (is (=
+             (do-batch-browse server ["author" "title"] {"f.title.from" "Banana"})
+             {"author" ["AAA" "Äardvark"]
+              "title" ["Banana" "grapefruit"]}))
+
+
+        ;; Only the requested parts of each item
+        (is (=
+             (do-browse-fields server "author_terms" "heading,count")
+             [#{"heading" "count"} #{"heading" "count"}]))
+
+        ;; ... which always come in the same order
+        (is (=
+             (map key (first (-> (.query server
+                                         (doto (SolrQuery.)
+                                           (.setQueryType "/browse")
+                                           (.setParam "source" (into-array ["author"]))
+                                           (.setParam "rows" (into-array ["1"]))
+                                           (.setParam "fl" (into-array ["note,ids,count"]))))
+                                 .getResponse
+                                 (.get "Browse")
+                                 (.get "items"))))
+             ["heading" "count" "ids" "note"]))
+
+
+        ;; Paging through a heading's ids
+        (is (=
+             (map #(select-keys % ["count" "ids"])
+                  (do-browse-items server "author_terms" {"from" "Banana"
+                                                          "rows" "1"
+                                                          "fl" "count,ids"
+                                                          "idsRows" "0"}))
+             [{"count" 1 "ids" []}]))
+
+        (is (=
+             (map #(count (get % "docids"))
+                  (do-browse-items server "author_terms" {"from" "Banana"
+                                                          "rows" "1"
+                                                          "idsFormat" "docids"}))
+             [1]))
+
+
+        ;; Only headings with records matching a filter
+        (is (=
+             (map #(select-keys % ["heading" "count"])
+                  (do-browse-items server "author_terms"
+                                   {"rows" "10"
+                                    "fl" "count"
+                                    "fq" "id:\"author_browse-1\" OR id:\"author_browse-3\""}))
+             [{"heading" "Apple" "count" 1}
+              {"heading" "Banana" "count" 1}]))
+
+
+        ;; Merging several sources
+        (is (=
+             (do-browse server "author_title")
+             (do-browse server "title")))
+
+        (is (=
+             (map #(select-keys % ["heading" "count"])
+                  (do-browse-items server "author_title" {"from" "Apple"
+                                                          "rows" "1"
+                                                          "fl" "count"}))
+             [{"heading" "Apple" "count" 1}]))
+
+        ;; ... whose headings interleave, with one in both
+        (dotimes [attempt 2]
+          ;; The first time through, the merge is still being built in the
+          ;; background.  Positions should be the same either way.
+          (when (pos? attempt)
+            (Thread/sleep 500))
+
+          (is (=
+               (do-browse server "fruit")
+               ["Apple" "Banana" "Cherry" "Mango" "Zucchini"]))
+
+          (is (=
+               (do-browse server "fruit" {:from "c"})
+               ["Cherry" "Mango" "Zucchini"]))
+
+          ;; The heading in both members comes out once, between its
+          ;; neighbours from each member
+          (is (=
+               (do-browse-around server "fruit" "Cherry" 2 2)
+               {:headings ["Apple" "Banana" "Cherry" "Mango"]
+                :match 2}))
+
+          (is (=
+               (map #(get % "heading")
+                    (do-browse-items server "fruit" {"rowid" "4"
+                                                     "rows" "2"}))
+               ["Mango" "Zucchini"])))
+
+
+        ;; Streaming a range of headings
+        (is (=
+             (do-export server "author" {"from" "apple"
+                                         "to" "grapefruit"
+                                         "fl" "count"})
+             [{"heading" "Apple" "count" 1}
+              {"heading" "Banana" "count" 1}]))
+
+        (is (=
+             (count (do-export server "author" {}))
+             6))
+
+        ;; Exports always cover the whole range, so paging is refused
+        (is (thrown? Exception
+                     (do-export server "author" {"rows" "2"})))
+
+
+        ;; Suggestions as you type
+        (is (=
+             (do-suggest server "author" "a")
+             ["AAA" "Äardvark" "Apple"]))
+
+        (is (=
+             (do-suggest server "author" "Äa")
+             ["AAA" "Äardvark"]))
+
+
+        ;; Timing the stages of a request
+        (is (=
+             (-> (.query server
+                         (doto (SolrQuery.)
+                           (.setQueryType "/browse")
+                           (.setParam "source" (into-array ["author"]))
+                           (.setParam "debug" (into-array ["timing"]))))
+                 .getResponse
+                 (.get "trace")
+                 (.get "name"))
+             "request"))
+
+
+        ;; Another collation order over the same headings (Swedish puts Ä
+        ;; after Z)
+        (is (=
+             (map #(get % "heading")
+                  (do-browse-items server "title" {"order" "sv"
+                                                   "rows" "3"
+                                                   "from" "orange"}))
+             ["Orange" "Äardvark"]))
+
+        (is (=
+             (map #(get % "heading")
+                  (do-browse-items server "title" {"rows" "2"
+                                                   "from" "aardvark"}))
+             ["Äardvark" "Apple"]))
+
+
+        ;; Call numbers in shelf order, followed by anything that isn't one
+        ;; (including class numbers too long to be real)
+        (is (=
+             (do-browse server "lcc")
+             ["QA7 .B5" "QA76 .A12" "QA76 .A2" "QA76.9 .C2" "QA760 .A1" "QB1 .A1"
+              "Periodicals" "QA12345"]))
+
+        (is (=
+             (take 2 (do-browse server "lcc" {:from "qa76.5"}))
+             ["QA76.9 .C2" "QA760 .A1"]))
+
+        ;; Class numbers in shelf order, even past the ninth decimal place,
+        ;; followed by anything that isn't one
+        (is (=
+             (do-browse server "dewey")
+             ["8.5" "82" "823.9" "823.914" "823.9140000001" "823.9140000002"
+              "900" "2001"]))
+
+
+        ;; Browsing straight from the bib index's terms
+        (is (=
+             (do-browse server "author_terms")
+             ["AAA" "Apple" "Banana" "Orange" "grapefruit" "Äardvark"]))
+
+        (is (=
+             (do-browse server "author_terms" {:from "B"})
+             ["Banana" "Orange" "grapefruit" "Äardvark"]))
+
+
         (doseq [browse test-browses]
           (when (.startsWith (:name browse)
                              "sample")
@@ -210,6 +662,135 @@
                  (do-browse server (:name browse))
                  (map :heading (:headings browse))))))
 
+
+        ;; The same source with the handler's optional settings turned on
+        (let [solr-core (.getCore core "")
+              tuned (.getRequestHandler solr-core "/browse-tuned")
+              stat #(.get (.getStatistics tuned) %)]
+          (try
+
+            ;; After a page is served, the pages either side are loaded into
+            ;; the cache in the background, so the next page is a hit
+            (let [page {"qt" "/browse-tuned"
+                        "rowid" "3"
+                        "rows" "2"}
+                  prefetches (stat "cachePrefetches")]
+              (is (=
+                   (map #(get % "heading") (do-browse-items server "author" page))
+                   ["Apple" "Banana"]))
+
+              ;; Give the prefetcher a moment to load both neighbours
+              (loop [attempts 50]
+                (when (and (< (stat "cachePrefetches") (+ prefetches 2))
+                           (pos? attempts))
+                  (Thread/sleep 100)
+                  (recur (dec attempts))))
+
+              (let [hits (stat "cacheHits")]
+                (is (=
+                     (map #(get % "heading")
+                          (do-browse-items server "author" (assoc page "offset" "2")))
+                     ["grapefruit" "Orange"]))
+
+                (is (= (stat "cacheHits") (inc hits)))))
+
+
+            ;; Pages are cut down to maxRows
+            (is (=
+                 (map #(get % "heading")
+                      (do-browse-items server "author" {"qt" "/browse-tuned"
+                                                        "rows" "10"}))
+                 ["AAA" "Äardvark" "Apple"]))
+
+
+            ;; Requests over the source's maxConcurrent are turned away with a
+            ;; 503 rather than queueing.  Holding the only permit stands in
+            ;; for a request in progress.
+            (let [permits (-> tuned
+                              (field-value "sources")
+                              (get "author")
+                              (field-value "permits"))
+                  page {"qt" "/browse-tuned"
+                        "rows" "1"}]
+              (.acquire permits)
+              (try
+                (is (=
+                     (solr-error-code #(do-browse-items server "author" page))
+                     503))
+                (finally
+                 (.release permits)))
+
+              (is (=
+                   (map #(get % "heading") (do-browse-items server "author" page))
+                   ["AAA"])))
+
+
+            ;; Once a request's time is up, the rest of its page is headings
+            ;; only and the response says it's partial
+            (let [result (do-late-browse solr-core "/browse" {"source" "author"
+                                                              "rows" "2"
+                                                              "timeAllowed" "1"})]
+              (is (= (.get result "partial") true))
+
+              (is (=
+                   (map #(into {} %) (.get result "items"))
+                   [{"heading" "AAA"} {"heading" "Äardvark"}])))
+
+
+            ;; Authority data read from the in-memory snapshot is the same as
+            ;; read from the authority index
+            (let [page {"from" "Apple"
+                        "rows" "3"
+                        "fl" "seeAlso,useInstead,note"}
+                  from-index (do-browse-items server "author" page)]
+              (is (=
+                   (first from-index)
+                   {"heading" "Apple"
+                    "seeAlso" ["Banana"]
+                    "useInstead" []
+                    "note" ["The fruit, not the company"]}))
+
+              (is (=
+                   (nth from-index 2)
+                   {"heading" "grapefruit"
+                    "seeAlso" []
+                    "useInstead" ["Orange"]
+                    "note" []}))
+
+              (is (=
+                   (do-browse-items server "author" (assoc page "qt" "/browse-tuned"))
+                   from-index)))
+
+
+            ;; Cached pages are reused until the bib index changes.  (This
+            ;; updates the bib index, so it comes last.)
+            (let [params {"qt" "/browse-tuned"
+                          "from" "Apple"
+                          "rows" "1"
+                          "fl" "count"}]
+              (is (=
+                   (do-browse-items server "author" params)
+                   [{"heading" "Apple" "count" 1}]))
+
+              (let [hits (stat "cacheHits")]
+                (is (=
+                     (do-browse-items server "author" params)
+                     [{"heading" "Apple" "count" 1}]))
+
+                (is (= (stat "cacheHits") (inc hits))))
+
+              (.add server (doto (SolrInputDocument.)
+                             (.addField "id" "author_browse-new")
+                             (.addField "author_browse" "Apple")))
+              (.commit server)
+
+              (is (=
+                   (do-browse-items server "author" params)
+                   [{"heading" "Apple" "count" 2}])))
+
+            (finally
+             (.close solr-core))))
+
         (println "\n====== Tests complete ======\n")
 
         (.shutdown core))
@@ -217,8 +798,12 @@
 
 
       (finally
-       (Files/deleteRecursively tmpdir)
-       (shutdown-agents)))))
+       (Files/deleteRecursively tmpdir)))))
+
 
+;; The same tests against DBs built from scratch, built with -delta and
+;; built with key blocks
+(doseq [build [:full :delta :key-blocks]]
+  (main build))
 
-(main)
+(shutdown-agents)